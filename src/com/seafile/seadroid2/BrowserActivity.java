@@ -40,9 +40,11 @@ import com.ipaulpro.afilechooser.FileChooserActivity;
 import com.ipaulpro.afilechooser.utils.FileUtils;
 import com.seafile.seadroid2.TransferManager.DownloadTaskInfo;
 import com.seafile.seadroid2.TransferManager.UploadTaskInfo;
+import com.seafile.seadroid2.TransferScheduler.Priority;
 import com.seafile.seadroid2.TransferService.TransferBinder;
 import com.seafile.seadroid2.account.Account;
 import com.seafile.seadroid2.data.DataManager;
+import com.seafile.seadroid2.data.DirentsPrefetcher;
 import com.seafile.seadroid2.data.SeafDirent;
 import com.seafile.seadroid2.data.SeafRepo;
 import com.seafile.seadroid2.gallery.MultipleImageSelectionActivity;
@@ -73,6 +75,7 @@ public class BrowserActivity extends SherlockFragmentActivity
     private Account account;
     NavContext navContext = null;
     DataManager dataManager = null;
+    DirentsPrefetcher direntsPrefetcher = null;
     TransferService txService = null;
     TransferReceiver mTransferReceiver;
 
@@ -100,21 +103,27 @@ public class BrowserActivity extends SherlockFragmentActivity
         return dataManager;
     }
 
+    public DirentsPrefetcher getDirentsPrefetcher() {
+        return direntsPrefetcher;
+    }
+
     private class PendingUploadInfo {
         String repoID;
         String repoName;
         String targetDir;
         String localFilePath;
         boolean isUpdate;
+        Priority priority;
 
         public PendingUploadInfo(String repoID, String repoName,
                                  String targetDir, String localFilePath,
-                                 boolean isUpdate) {
+                                 boolean isUpdate, Priority priority) {
             this.repoID = repoID;
             this.repoName = repoName;
             this.targetDir = targetDir;
             this.localFilePath = localFilePath;
             this.isUpdate = isUpdate;
+            this.priority = priority;
         }
     }
 
@@ -122,20 +131,44 @@ public class BrowserActivity extends SherlockFragmentActivity
         if (txService != null) {
             txService.addUploadTask(account, repoID, repoName, targetDir, localFilePath, true);
         } else {
-            PendingUploadInfo info = new PendingUploadInfo(repoID, repoName, targetDir, localFilePath, true);
+            PendingUploadInfo info = new PendingUploadInfo(repoID, repoName, targetDir, localFilePath,
+                                                           true, Priority.NORMAL);
             pendingUploads.add(info);
         }
     }
 
     private void addUploadTask(String repoID, String repoName, String targetDir, String localFilePath) {
+        addUploadTask(repoID, repoName, targetDir, localFilePath, Priority.NORMAL);
+    }
+
+    private void addUploadTask(String repoID, String repoName, String targetDir,
+                               String localFilePath, Priority priority) {
         if (txService != null) {
-            txService.addUploadTask(account, repoID, repoName, targetDir, localFilePath, false);
+            txService.addUploadTask(account, repoID, repoName, targetDir, localFilePath, false,
+                                    priority);
         } else {
-            PendingUploadInfo info = new PendingUploadInfo(repoID, repoName, targetDir, localFilePath, false);
+            PendingUploadInfo info = new PendingUploadInfo(repoID, repoName, targetDir, localFilePath,
+                                                           false, priority);
             pendingUploads.add(info);
         }
     }
 
+    /**
+     * Upload a batch of new files to the same dir
+     */
+    private void addUploadTasks(String repoID, String repoName, String targetDir,
+                                List<String> localFilePaths, Priority priority) {
+        if (txService != null) {
+            txService.addUploadTasks(account, repoID, repoName, targetDir, localFilePaths,
+                                     priority);
+        } else {
+            for (String path : localFilePaths) {
+                pendingUploads.add(new PendingUploadInfo(repoID, repoName, targetDir, path,
+                                                         false, priority));
+            }
+        }
+    }
+
     private ArrayList<PendingUploadInfo> pendingUploads = new ArrayList<PendingUploadInfo>();
 
     public TransferService getTransferService() {
@@ -223,6 +256,8 @@ public class BrowserActivity extends SherlockFragmentActivity
         }
 
         dataManager = new DataManager(account);
+        direntsPrefetcher = new DirentsPrefetcher(account);
+        dataManager.trimCachedFiles();
         navContext = new NavContext();
 
         //setContentView(R.layout.seadroid_main);
@@ -306,7 +341,8 @@ public class BrowserActivity extends SherlockFragmentActivity
             for (PendingUploadInfo info : pendingUploads) {
                 txService.addUploadTask(account, info.repoID,
                                         info.repoName, info.targetDir,
-                                        info.localFilePath, info.isUpdate);
+                                        info.localFilePath, info.isUpdate,
+                                        info.priority);
             }
             pendingUploads.clear();
 
@@ -364,6 +400,9 @@ public class BrowserActivity extends SherlockFragmentActivity
             txService = null;
         }
 
+        if (direntsPrefetcher != null) {
+            direntsPrefetcher.shutdown();
+        }
 
         super.onDestroy();
     }
@@ -672,10 +711,11 @@ public class BrowserActivity extends SherlockFragmentActivity
                 ArrayList<String> paths = data.getStringArrayListExtra("photos");
                 if (paths == null)
                     return;
-                for (String path : paths) {
-                    addUploadTask(navContext.getRepoID(),
-                        navContext.getRepoName(), navContext.getDirPath(), path);
-                }
+                // A batch of photos should not hold back the files the
+                // user opens meanwhile
+                addUploadTasks(navContext.getRepoID(),
+                    navContext.getRepoName(), navContext.getDirPath(), paths,
+                    Priority.LOW);
             }
         }
 
@@ -880,8 +920,11 @@ public class BrowserActivity extends SherlockFragmentActivity
         if (txService == null) {
             return;
         }
+        if (uploadTasksFragment == null || !uploadTasksFragment.isReady()) {
+            return;
+        }
         UploadTaskInfo info = txService.getUploadTaskInfo(taskID);
-        if (uploadTasksFragment != null && uploadTasksFragment.isReady())
+        if (info != null)
             uploadTasksFragment.onTaskProgressUpdate(info);
     }
 
@@ -930,9 +973,9 @@ public class BrowserActivity extends SherlockFragmentActivity
             return;
         }
 
-        DownloadTaskInfo info = txService.getDownloadTaskInfo(taskID);
         if (fetchFileDialog != null && fetchFileDialog.getTaskID() == taskID) {
-                fetchFileDialog.handleDownloadTaskInfo(info);
+            DownloadTaskInfo info = txService.getDownloadTaskInfo(taskID);
+            fetchFileDialog.handleDownloadTaskInfo(info);
         }
     }
 
@@ -948,7 +991,9 @@ public class BrowserActivity extends SherlockFragmentActivity
             if (currentTab.equals(LIBRARY_TAB)
                 && info.repoID.equals(navContext.getRepoID())
                 && Utils.getParentPath(info.path).equals(navContext.getDirPath())) {
-                reposFragment.getAdapter().notifyChanged();
+                // The rows are bound from the index, which doesn't know the
+                // file has been cached yet
+                reposFragment.refreshCachedFilesIndex();
             }
         }
     }
@@ -1003,8 +1048,9 @@ public class BrowserActivity extends SherlockFragmentActivity
         public void onReceive(Context context, Intent intent) {
             String type = intent.getStringExtra("type");
             if (type.equals(TransferService.BROADCAST_FILE_DOWNLOAD_PROGRESS)) {
-                int taskID = intent.getIntExtra("taskID", 0);
-                onFileDownloadProgress(taskID);
+                for (int taskID : intent.getIntArrayExtra("taskIDs")) {
+                    onFileDownloadProgress(taskID);
+                }
 
             } else if (type.equals(TransferService.BROADCAST_FILE_DOWNLOAD_SUCCESS)) {
                 int taskID = intent.getIntExtra("taskID", 0);
@@ -1023,8 +1069,9 @@ public class BrowserActivity extends SherlockFragmentActivity
                 onFileUploadFailed(taskID);
 
             } else if (type.equals(TransferService.BROADCAST_FILE_UPLOAD_PROGRESS)) {
-                int taskID = intent.getIntExtra("taskID", 0);
-                onFileUploadProgress(taskID);
+                for (int taskID : intent.getIntArrayExtra("taskIDs")) {
+                    onFileUploadProgress(taskID);
+                }
             } else if (type.equals(TransferService.BROADCAST_FILE_UPLOAD_CANCELLED)) {
                 int taskID = intent.getIntExtra("taskID", 0);
                 onFileUploadCancelled(taskID);
@@ -272,7 +272,19 @@ public class FileActivity extends SherlockFragmentActivity {
                 return;
             }
 
-            int taskID = intent.getIntExtra("taskID", 0);
+            int taskID;
+            if (type.equals(TransferService.BROADCAST_FILE_DOWNLOAD_PROGRESS)) {
+                // Progress events of several tasks are sent together
+                taskID = -1;
+                for (int id : intent.getIntArrayExtra("taskIDs")) {
+                    if (id == mTaskID) {
+                        taskID = id;
+                        break;
+                    }
+                }
+            } else {
+                taskID = intent.getIntExtra("taskID", 0);
+            }
             if (taskID != mTaskID) {
                 return;
             }
@@ -0,0 +1,129 @@
+package com.seafile.seadroid2;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+import android.os.Handler;
+
+/**
+ * Merges the progress events of the transfer tasks, so that the listeners
+ * get at most one batch of events per {@link #INTERVAL} ms, whatever the
+ * number of running tasks, instead of one event per progress callback.
+ *
+ * Events are grouped by type (e.g. upload or download progress). A batch
+ * only holds the ids of the tasks which made progress; the listener reads
+ * their current state itself, so the events received in the meantime for
+ * the same task are simply merged.
+ */
+class ProgressCoalescer {
+    public static final long INTERVAL = 250;
+
+    public interface Sink {
+        /**
+         * Called on the main thread with the tasks which made progress since
+         * the last batch of this type, in the order of their first event.
+         */
+        public void onProgressBatch(String type, int[] taskIDs);
+    }
+
+    private final Sink sink;
+    private final Handler handler;
+    private final HashMap<String, LinkedHashSet<Integer>> pending =
+            new HashMap<String, LinkedHashSet<Integer>>();
+    private boolean flushScheduled = false;
+
+    private long received = 0;
+    private long merged = 0;
+    private long dropped = 0;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    public ProgressCoalescer(Sink sink) {
+        this.sink = sink;
+        this.handler = new Handler();
+    }
+
+    public synchronized void post(String type, int taskID) {
+        received++;
+
+        LinkedHashSet<Integer> ids = pending.get(type);
+        if (ids == null) {
+            ids = new LinkedHashSet<Integer>();
+            pending.put(type, ids);
+        }
+        if (!ids.add(taskID)) {
+            merged++;
+        }
+
+        if (!flushScheduled) {
+            flushScheduled = true;
+            handler.postDelayed(flushTask, INTERVAL);
+        }
+    }
+
+    /**
+     * Drop the pending progress of a task, e.g. because it has just finished
+     * and the final event must not be followed by a stale progress event.
+     */
+    public synchronized void discard(String type, int taskID) {
+        LinkedHashSet<Integer> ids = pending.get(type);
+        if (ids != null && ids.remove(taskID)) {
+            dropped++;
+        }
+    }
+
+    public void flush() {
+        HashMap<String, int[]> batches = new HashMap<String, int[]>();
+
+        synchronized (this) {
+            handler.removeCallbacks(flushTask);
+            flushScheduled = false;
+
+            for (Map.Entry<String, LinkedHashSet<Integer>> entry : pending.entrySet()) {
+                LinkedHashSet<Integer> ids = entry.getValue();
+                if (ids.isEmpty()) {
+                    continue;
+                }
+                int[] taskIDs = new int[ids.size()];
+                int i = 0;
+                for (int id : ids) {
+                    taskIDs[i++] = id;
+                }
+                batches.put(entry.getKey(), taskIDs);
+            }
+            pending.clear();
+        }
+
+        // Deliver outside of the lock, the sink may post new events
+        for (Map.Entry<String, int[]> batch : batches.entrySet()) {
+            sink.onProgressBatch(batch.getKey(), batch.getValue());
+        }
+    }
+
+    public synchronized void stop() {
+        handler.removeCallbacks(flushTask);
+        flushScheduled = false;
+        pending.clear();
+    }
+
+    /** The number of progress events received */
+    public synchronized long getReceivedCount() {
+        return received;
+    }
+
+    /** The number of events merged into an event already waiting for the same task */
+    public synchronized long getMergedCount() {
+        return merged;
+    }
+
+    /** The number of events dropped because their task has ended */
+    public synchronized long getDroppedCount() {
+        return dropped;
+    }
+}
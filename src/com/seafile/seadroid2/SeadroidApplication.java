@@ -10,6 +10,8 @@ public class SeadroidApplication extends Application {
     public void onCreate() {
         super.onCreate();
         SeadroidApplication.context = getApplicationContext();
+        // Before any connection is opened
+        SeafConnectionPool.configure();
     }
 
     public static Context getAppContext() {
@@ -3,13 +3,20 @@ package com.seafile.seadroid2;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -22,6 +29,8 @@ import com.github.kevinsawicki.http.HttpRequest.HttpRequestException;
 import com.seafile.seadroid2.account.Account;
 import com.seafile.seadroid2.data.DataManager;
 import com.seafile.seadroid2.data.DataManager.ProgressMonitor;
+import com.seafile.seadroid2.data.DirentsParser;
+import com.seafile.seadroid2.data.SeafDirent;
 
 /**
  * SeafConnection encapsulates Seafile Web API
@@ -31,16 +40,59 @@ public class SeafConnection {
 
     private static final String DEBUG_TAG = "SeafConnection";
 
+    /**
+     * The size of the buffer used to copy file data from or to the network.
+     * Each buffer costs one channel call and one monitor check, so a large
+     * buffer keeps the cpu time per MB low.
+     */
+    public static final int DEFAULT_TRANSFER_BUFFER_SIZE = 64 * 1024;
+
+    private static volatile int transferBufferSize = DEFAULT_TRANSFER_BUFFER_SIZE;
+
     private Account account;
+    private SeafConnectionPool pool;
+    private UploadLinkCache uploadLinks;
+
+    /** The bytes of dirents listings received through this connection */
+    private final AtomicLong direntsBytes = new AtomicLong();
+
+    /** Whether the dirents requests are background requests */
+    private volatile boolean background = false;
 
     public SeafConnection(Account act) {
         account = act;
+        pool = SeafConnectionPool.getPool(act);
+        uploadLinks = UploadLinkCache.getCache(act);
+    }
+
+    /**
+     * Make the dirents requests of this connection background requests, which
+     * leave a request slot of the account to the requests the user is
+     * waiting for, e.g. for prefetching.
+     */
+    public void setBackground(boolean background) {
+        this.background = background;
     }
 
     public Account getAccount() {
         return account;
     }
 
+    public long getReceivedDirentsBytes() {
+        return direntsBytes.get();
+    }
+
+    public static int getTransferBufferSize() {
+        return transferBufferSize;
+    }
+
+    public static void setTransferBufferSize(int size) {
+        if (size < 1024) {
+            size = 1024;
+        }
+        transferBufferSize = size;
+    }
+
     private HttpRequest prepareApiGetRequest(String apiPath, Map<String, ?> params) throws IOException {
         return HttpRequest.get(account.server + apiPath, params, false).
                     trustAllCerts().trustAllHosts().
@@ -53,9 +105,7 @@ public class SeafConnection {
     }
 
     private HttpRequest prepareApiFileGetRequest(String url) throws HttpRequestException {
-        return HttpRequest.get(url).
-                trustAllCerts().trustAllHosts().
-                connectTimeout(15000);
+        return SeafConnectionPool.prepareFileGetRequest(url);
     }
 
     /** Prepare a post request.
@@ -83,8 +133,10 @@ public class SeafConnection {
      * @throws SeafException
      */
     private boolean realLogin() throws SeafException {
+        HttpRequest req = null;
+        pool.acquire();
         try {
-            HttpRequest req = prepareApiPostRequest("api2/auth-token/", false, null);
+            req = prepareApiPostRequest("api2/auth-token/", false, null);
             Log.d(DEBUG_TAG, "Login to " + account.server + "api2/auth-token/");
 
             req.form("username", account.email);
@@ -98,7 +150,7 @@ public class SeafConnection {
                 }
             }
 
-            String contentAsString = new String(req.bytes(), "UTF-8");
+            String contentAsString = new String(SeafConnectionPool.readBody(req), "UTF-8");
             JSONObject obj = Utils.parseJsonObject(contentAsString);
             if (obj == null)
                 return false;
@@ -113,6 +165,9 @@ public class SeafConnection {
             throw SeafException.networkException;
         } catch (JSONException e) {
             throw SeafException.illFormatException;
+        } finally {
+            SeafConnectionPool.release(req);
+            pool.releaseSlot();
         }
     }
 
@@ -125,9 +180,27 @@ public class SeafConnection {
         }
     }
 
-    public String getRepos() throws SeafException {
+    /**
+     * Get the repos list, unless it has not changed since the response with
+     * the given ETag.
+     *
+     * @param etag the ETag of the cached list, or null to always get the list
+     * @return the ETag of the response, null if the server doesn't send one,
+     * and the json of the list, null if the cached list is still valid
+     */
+    public Pair<String, String> getRepos(String etag) throws SeafException {
+        HttpRequest req = null;
+        pool.acquire();
         try {
-            HttpRequest req = prepareApiGetRequest("api2/repos/");
+            req = prepareApiGetRequest("api2/repos/");
+            if (etag != null) {
+                req.header("If-None-Match", etag);
+            }
+
+            if (req.code() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                return new Pair<String, String>(etag, null);
+            }
+
             if (req.code() != 200) {
                 if (req.message() == null) {
                     throw SeafException.networkException;
@@ -136,14 +209,17 @@ public class SeafConnection {
                 }
             }
 
-            String result = new String(req.bytes(), "UTF-8");
-            return result;
+            String result = new String(SeafConnectionPool.readBody(req), "UTF-8");
+            return new Pair<String, String>(req.header("ETag"), result);
         } catch (SeafException e) {
             throw e;
         } catch (HttpRequestException e) {
             throw SeafException.networkException;
         } catch (IOException e) {
             throw SeafException.networkException;
+        } finally {
+            SeafConnectionPool.release(req);
+            pool.releaseSlot();
         }
     }
 
@@ -156,11 +232,19 @@ public class SeafConnection {
      * @param repoID
      * @param path
      * @param cachedDirID The local cached dirID.
-     * @return A non-null Pair of (dirID, content). If the local cache is up to date, the "content" is null.
+     * @return A non-null Pair of (dirID, dirents). If the local cache is up to date, the "dirents" is null.
+     * The dirents are parsed while the response is read.
      * @throws SeafException
      */
-    public Pair<String, String> getDirents(String repoID, String path, String cachedDirID)
+    public Pair<String, List<SeafDirent>> getDirents(String repoID, String path, String cachedDirID)
                                         throws SeafException {
+        HttpRequest req = null;
+        boolean bg = background;
+        if (bg) {
+            pool.acquireBackground();
+        } else {
+            pool.acquire();
+        }
         try {
             String apiPath = String.format("api2/repos/%s/dir/", repoID);
             Map<String, Object> params = new HashMap<String, Object>();
@@ -168,7 +252,7 @@ public class SeafConnection {
             if (cachedDirID != null) {
                 params.put("oid", cachedDirID);
             }
-            HttpRequest req = prepareApiGetRequest(apiPath, params);
+            req = prepareApiGetRequest(apiPath, params);
             if (req.code() != 200)
                 if (req.message() == null)
                     throw SeafException.networkException;
@@ -176,7 +260,7 @@ public class SeafConnection {
                     throw new SeafException(req.code(), req.message());
 
             String dirID = req.header("oid");
-            String content;
+            List<SeafDirent> dirents;
             if (dirID == null) {
                 throw SeafException.unknownException;
             }
@@ -184,38 +268,85 @@ public class SeafConnection {
             if (dirID.equals(cachedDirID)) {
                 // local cache is valid
                 Log.d(DEBUG_TAG, String.format("dir %s is cached", path));
-                content = null;
+                dirents = null;
             } else {
                 Log.d(DEBUG_TAG,
                       String.format("dir %s will be downloaded from server, latest %s, local cache %s",
                                     path, dirID, cachedDirID != null ? cachedDirID : "null"));
-                byte[] rawBytes = req.bytes();
-                if (rawBytes == null) {
-                    throw SeafException.unknownException;
-                }
-                content = new String(rawBytes, "UTF-8");
+                InputStream in = new CountingInputStream(req.stream(), direntsBytes);
+                dirents = DirentsParser.parse(new InputStreamReader(in, "UTF-8"));
             }
 
-            return new Pair<String, String>(dirID, content);
+            return new Pair<String, List<SeafDirent>>(dirID, dirents);
 
         } catch (SeafException e) {
             throw e;
         } catch (UnsupportedEncodingException e) {
             throw SeafException.encodingException;
+        } catch (JSONException e) {
+            throw SeafException.illFormatException;
         } catch (HttpRequestException e) {
             throw SeafException.networkException;
         } catch (IOException e) {
             throw SeafException.networkException;
+        } finally {
+            SeafConnectionPool.release(req);
+            if (bg) {
+                pool.releaseBackground();
+            } else {
+                pool.releaseSlot();
+            }
+        }
+    }
+
+    /**
+     * Get a thumbnail of an image scaled by the server, so that the image
+     * doesn't need to be downloaded.
+     *
+     * @param size the size in pixels of the longer side of the thumbnail
+     * @return the encoded thumbnail
+     */
+    public byte[] getThumbnail(String repoID, String path, int size) throws SeafException {
+        HttpRequest req = null;
+        pool.acquireBackground();
+        try {
+            String apiPath = String.format("api2/repos/%s/thumbnail/", repoID);
+            Map<String, Object> params = new HashMap<String, Object>();
+            params.put("p", encodeUriComponent(path));
+            params.put("size", size);
+            req = prepareApiGetRequest(apiPath, params);
+            if (req.code() != 200) {
+                if (req.message() == null) {
+                    throw SeafException.networkException;
+                } else {
+                    throw new SeafException(req.code(), req.message());
+                }
+            }
+
+            return SeafConnectionPool.readBody(req);
+        } catch (SeafException e) {
+            throw e;
+        } catch (UnsupportedEncodingException e) {
+            throw SeafException.encodingException;
+        } catch (IOException e) {
+            throw SeafException.networkException;
+        } catch (HttpRequestException e) {
+            throw SeafException.networkException;
+        } finally {
+            SeafConnectionPool.release(req);
+            pool.releaseBackground();
         }
     }
 
     private Pair<String, String> getDownloadLink(String repoID, String path) throws SeafException {
+        HttpRequest req = null;
+        pool.acquire();
         try {
             String apiPath = String.format("api2/repos/%s/file/", repoID);
             Map<String, Object> params = new HashMap<String, Object>();
             params.put("p", encodeUriComponent(path));
             params.put("op", "download");
-            HttpRequest req = prepareApiGetRequest(apiPath, params);
+            req = prepareApiGetRequest(apiPath, params);
             if (req.code() != 200) {
                 if (req.message() == null) {
                     throw SeafException.networkException;
@@ -224,7 +355,7 @@ public class SeafConnection {
                 }
             }
 
-            String result = new String(req.bytes(), "UTF-8");
+            String result = new String(SeafConnectionPool.readBody(req), "UTF-8");
             String fileID = req.header("oid");
 
             // should return "\"http://gonggeng.org:8082/...\"" or "\"https://gonggeng.org:8082/...\"
@@ -242,24 +373,63 @@ public class SeafConnection {
             throw SeafException.networkException;
         } catch (HttpRequestException e) {
             throw SeafException.networkException;
+        } finally {
+            SeafConnectionPool.release(req);
+            pool.releaseSlot();
         }
     }
 
-    private File getFileFromLink(String dlink, String path, String localPath,
+    /** Files at least this large are downloaded by {@link SegmentedDownloader} */
+    private static final long SEGMENTED_DOWNLOAD_THRESHOLD = 8 * 1024 * 1024;
+    private static final int DOWNLOAD_SEGMENTS = 4;
+
+    /**
+     * Download a file into its temp file, then move it to localPath.
+     *
+     * The temp file is named after the file and its file id (see
+     * {@link DataManager#getTempFile(Account, String, String, String)}), so
+     * whatever is left in it by a cancelled or failed download is a prefix of
+     * this very version of the file. In that case only the rest of the file is requested with a
+     * "Range" header. Partial downloads of other versions are discarded.
+     */
+    private File getFileFromLink(String dlink, String repoID, String path, String localPath,
                                  String oid, ProgressMonitor monitor)
                                     throws SeafException {
         if (dlink == null)
             return null;
 
         File file = new File(localPath);
+        HttpRequest req = null;
 
         try {
             int i = dlink.lastIndexOf('/');
             String quoted = dlink.substring(0, i) + "/" +
                     URLEncoder.encode(dlink.substring(i+1), "UTF-8");
 
-            HttpRequest req = prepareApiFileGetRequest(quoted);
-            if (req.code() != 200) {
+            DataManager.removeStaleTempFiles(account, repoID, path, oid);
+            File tmp = DataManager.getTempFile(account, repoID, path, oid);
+            long offset = tmp.exists() ? tmp.length() : 0;
+
+            req = prepareApiFileGetRequest(quoted);
+            if (offset > 0) {
+                req.header("Range", "bytes=" + offset + "-");
+            }
+
+            if (req.code() == 416) {
+                // The partial file is not a prefix of the file on the server
+                SeafConnectionPool.release(req);
+                tmp.delete();
+                offset = 0;
+                req = prepareApiFileGetRequest(quoted);
+            }
+
+            if (req.code() == 200) {
+                // The server sends the whole file, maybe ignoring "Range"
+                offset = 0;
+            } else if (req.code() == 206 && offset > 0) {
+                Log.d(DEBUG_TAG, String.format("resume download of %s from %d", path, offset));
+            } else {
+                SeafConnectionPool.release(req);
                 if (req.message() == null) {
                     throw SeafException.networkException;
                 } else {
@@ -267,21 +437,36 @@ public class SeafConnection {
                 }
             }
 
+            String contentLength = req.header(HttpRequest.HEADER_CONTENT_LENGTH);
+            if (offset == 0 && contentLength != null
+                && Long.parseLong(contentLength) >= SEGMENTED_DOWNLOAD_THRESHOLD
+                && "bytes".equals(req.header("Accept-Ranges"))) {
+                // Fetch a large file with several connections instead
+                SeafConnectionPool.abort(req);
+                new SegmentedDownloader(pool, quoted, tmp, Long.parseLong(contentLength),
+                                        DOWNLOAD_SEGMENTS, monitor).download();
+                if (tmp.renameTo(file) == false) {
+                    Log.w(DEBUG_TAG, "Rename file error");
+                    return null;
+                }
+                return file;
+            }
+
             if (monitor != null) {
-                if (req.header(HttpRequest.HEADER_CONTENT_LENGTH) == null) {
+                if (contentLength == null) {
                     throw SeafException.illFormatException;
                 }
-                Long size = Long.parseLong(req.header(HttpRequest.HEADER_CONTENT_LENGTH));
+                Long size = offset + Long.parseLong(contentLength);
                 monitor.onProgressNotify(size);
             }
 
-            File tmp = DataManager.getTempFile(path, oid);
             // Log.d(DEBUG_TAG, "write to " + tmp.getAbsolutePath());
+            boolean append = offset > 0;
+            req.bufferSize(transferBufferSize);
             if (monitor == null) {
-                req.receive(tmp);
+                req.receive(new FileOutputStream(tmp, append));
             } else {
-                req.bufferSize(MonitoredFileOutputStream.BUFFER_SIZE);
-                req.receive(new MonitoredFileOutputStream(tmp, monitor));
+                req.receive(new MonitoredFileOutputStream(tmp, offset, monitor));
             }
 
             if (tmp.renameTo(file) == false) {
@@ -296,8 +481,10 @@ public class SeafConnection {
             throw SeafException.encodingException;
         } catch (IOException e) {
             e.printStackTrace();
+            SeafConnectionPool.abort(req);
             throw SeafException.networkException;
         } catch (HttpRequestException e) {
+            SeafConnectionPool.abort(req);
             if (e.getCause() instanceof MonitorCancelledException) {
                 Log.d(DEBUG_TAG, "download is cancelled");
                 throw SeafException.userCancelledException;
@@ -334,7 +521,7 @@ public class SeafConnection {
                   String.format("file %s will be downloaded from server, latest %s, local cache %s",
                                 path, fileID, cachedFileID != null ? cachedFileID : "null"));
 
-            File file = getFileFromLink(dlink, path, localPath, fileID, monitor);
+            File file = getFileFromLink(dlink, repoID, path, localPath, fileID, monitor);
             if (file != null) {
                 return new Pair<String, File>(fileID, file);
             } else {
@@ -345,8 +532,10 @@ public class SeafConnection {
 
     // set password for an encrypted repo
     public void setPassword(String repoID, String passwd) throws SeafException {
+        HttpRequest req = null;
+        pool.acquire();
         try {
-            HttpRequest req = prepareApiPostRequest("api2/repos/" + repoID + "/", true, null);
+            req = prepareApiPostRequest("api2/repos/" + repoID + "/", true, null);
 
             req.form("password", passwd);
 
@@ -364,10 +553,28 @@ public class SeafConnection {
             Log.d(DEBUG_TAG, "Exception in setPassword ");
             e.printStackTrace();
             return;
+        } finally {
+            SeafConnectionPool.release(req);
+            pool.releaseSlot();
         }
     }
 
+    /**
+     * Get an upload (or update) link of a repo, from the cache of the account
+     * if a recent one is there.
+     */
     private String getUploadLink(String repoID, boolean update) throws SeafException {
+        String link = uploadLinks.get(repoID, update);
+        if (link == null) {
+            link = fetchUploadLink(repoID, update);
+            uploadLinks.put(repoID, update, link);
+        }
+        return link;
+    }
+
+    private String fetchUploadLink(String repoID, boolean update) throws SeafException {
+        HttpRequest req = null;
+        pool.acquire();
         try {
             String apiPath;
             if (update) {
@@ -376,7 +583,7 @@ public class SeafConnection {
                 apiPath = "api2/repos/" + repoID + "/upload-link/";
             }
 
-            HttpRequest req = prepareApiGetRequest(apiPath);
+            req = prepareApiGetRequest(apiPath);
             if (req.code() != 200) {
                 Log.d("Upload", "Failed to get upload link " + req.code());
                 if (req.message() == null) {
@@ -386,7 +593,7 @@ public class SeafConnection {
                 }
             }
 
-            String result = new String(req.bytes(), "UTF-8");
+            String result = new String(SeafConnectionPool.readBody(req), "UTF-8");
             // should return "\"http://gonggeng.org:8082/...\"" or "\"https://gonggeng.org:8082/...\"
             if (result.startsWith("\"http")) {
                 // remove the starting and trailing quote
@@ -402,6 +609,9 @@ public class SeafConnection {
             else
                 Log.d(DEBUG_TAG, "get upload link error");
             throw SeafException.unknownException;
+        } finally {
+            SeafConnectionPool.release(req);
+            pool.releaseSlot();
         }
     }
 
@@ -410,12 +620,17 @@ public class SeafConnection {
      */
     public String updateFile(String repoID, String dir, String filePath, ProgressMonitor monitor)
                                 throws SeafException {
+        String url = null;
         try {
-            String url = getUploadLink(repoID, true);
+            url = getUploadLink(repoID, true);
             return uploadFileCommon(url, repoID, dir, filePath, monitor, true);
         } catch (SeafException e) {
+            if (url != null) {
+                // The cached link may have expired
+                uploadLinks.invalidate(repoID, true, url);
+            }
             // do again
-            String url = getUploadLink(repoID, true);
+            url = getUploadLink(repoID, true);
             return uploadFileCommon(url, repoID, dir, filePath, monitor, true);
         }
     }
@@ -425,16 +640,130 @@ public class SeafConnection {
      */
     public String uploadFile(String repoID, String dir, String filePath, ProgressMonitor monitor)
                             throws SeafException {
+        String url = null;
         try {
-            String url = getUploadLink(repoID, false);
+            url = getUploadLink(repoID, false);
             return uploadFileCommon(url, repoID, dir, filePath, monitor, false);
         } catch (SeafException e) {
+            if (url != null) {
+                // The cached link may have expired
+                uploadLinks.invalidate(repoID, false, url);
+            }
             // do again
-            String url = getUploadLink(repoID, false);
+            url = getUploadLink(repoID, false);
             return uploadFileCommon(url, repoID, dir, filePath, monitor, false);
         }
     }
 
+    /**
+     * Ask the server how many bytes of a new file it has already received
+     * from a previous, interrupted chunked upload.
+     *
+     * @return the number of bytes, or -1 if the server does not support
+     * resumable upload
+     */
+    public long getUploadedBytes(String repoID, String dir, String fileName)
+                                    throws SeafException {
+        HttpRequest req = null;
+        pool.acquire();
+        try {
+            String apiPath = String.format("api2/repos/%s/file-uploaded-bytes/", repoID);
+            Map<String, Object> params = new HashMap<String, Object>();
+            params.put("parent_dir", encodeUriComponent(dir));
+            params.put("file_name", encodeUriComponent(fileName));
+            req = prepareApiGetRequest(apiPath, params);
+            if (req.code() == 404) {
+                return -1;
+            }
+            if (req.code() != 200) {
+                if (req.message() == null) {
+                    throw SeafException.networkException;
+                } else {
+                    throw new SeafException(req.code(), req.message());
+                }
+            }
+
+            String result = new String(SeafConnectionPool.readBody(req), "UTF-8");
+            JSONObject obj = Utils.parseJsonObject(result);
+            if (obj == null) {
+                throw SeafException.illFormatException;
+            }
+            return obj.getLong("uploadedBytes");
+        } catch (SeafException e) {
+            throw e;
+        } catch (UnsupportedEncodingException e) {
+            throw SeafException.encodingException;
+        } catch (JSONException e) {
+            throw SeafException.illFormatException;
+        } catch (HttpRequestException e) {
+            throw SeafException.networkException;
+        } catch (IOException e) {
+            throw SeafException.networkException;
+        } finally {
+            SeafConnectionPool.release(req);
+            pool.releaseSlot();
+        }
+    }
+
+    public interface ChunkListener {
+        /**
+         * Called when the server has acknowledged all the bytes before
+         * uploadedBytes.
+         */
+        public void onChunkUploaded(long uploadedBytes);
+    }
+
+    /** The number of times a chunk is retried before giving up */
+    private static final int MAX_CHUNK_RETRIES = 3;
+
+    /**
+     * Upload a new file in chunks of chunkSize bytes, starting from offset.
+     * Each chunk is a separate request carrying a "Content-Range" header, so
+     * a dropped connection only loses the chunk being sent. A failed chunk is
+     * retried with a new upload link.
+     *
+     * @param offset The number of bytes already received by the server
+     * @param listener Notified after each acknowledged chunk
+     * @return The id of the new file
+     */
+    public String uploadFileChunked(String repoID, String dir, String filePath,
+                                    long offset, long chunkSize,
+                                    ChunkListener listener, ProgressMonitor monitor)
+                                        throws SeafException {
+        File file = new File(filePath);
+        if (!file.exists()) {
+            throw new SeafException(SeafException.OTHER_EXCEPTION, "File not exists");
+        }
+
+        long total = file.length();
+        String url = getUploadLink(repoID, false);
+        String result = null;
+        int retries = 0;
+
+        do {
+            long length = Math.min(chunkSize, total - offset);
+            try {
+                result = uploadFileCommon(url, dir, filePath, monitor, false, offset, length);
+            } catch (SeafException e) {
+                if (e == SeafException.userCancelledException || ++retries > MAX_CHUNK_RETRIES) {
+                    throw e;
+                }
+                Log.d(DEBUG_TAG, String.format("chunk at %d of %s failed, retry", offset, filePath));
+                uploadLinks.invalidate(repoID, false, url);
+                url = getUploadLink(repoID, false);
+                continue;
+            }
+
+            retries = 0;
+            offset += length;
+            if (listener != null) {
+                listener.onChunkUploaded(offset);
+            }
+        } while (offset < total);
+
+        return result;
+    }
+
     private static final String CRLF = "\r\n";
     private static final String TWO_HYPENS = "--";
     private static final String BOUNDARY = "----SeafileAndroidBound$_$";
@@ -445,15 +774,36 @@ public class SeafConnection {
     private String uploadFileCommon(String link, String repoID, String dir,
                                      String filePath, ProgressMonitor monitor, boolean update)
                                         throws SeafException {
+        return uploadFileCommon(link, dir, filePath, monitor, update, 0, -1);
+    }
+
+    /**
+     * Upload a file, or the range [offset, offset + length) of it, to seafile
+     * httpserver.
+     *
+     * @param length The length of the range, or -1 to upload the whole file
+     * in a single request
+     */
+    private String uploadFileCommon(String link, String dir, String filePath,
+                                    ProgressMonitor monitor, boolean update,
+                                    long offset, long length)
+                                        throws SeafException {
 
+        HttpRequest req = null;
         try {
             File file = new File(filePath);
             if (!file.exists()) {
                 throw new SeafException(SeafException.OTHER_EXCEPTION, "File not exists");
             }
 
+            boolean isChunk = length >= 0;
+            if (!isChunk) {
+                offset = 0;
+                length = file.length();
+            }
 
-            HttpRequest req = HttpRequest.post(link).
+
+            req = HttpRequest.post(link).
                                 trustAllCerts().trustAllHosts().
                                 connectTimeout(15000);
 
@@ -506,15 +856,21 @@ public class SeafConnection {
             String l3 = "Content-Type: text/plain" + CRLF;
             // line 4
             String l4 = CRLF;
-            totalLen += l1.length() + l2.length + l3.length() + l4.length() + file.length() + 2;
+            totalLen += l1.length() + l2.length + l3.length() + l4.length() + length + 2;
 
             String end = TWO_HYPENS + BOUNDARY + TWO_HYPENS + CRLF;
             totalLen += end.length();
 
             req.contentLength(totalLen);
-            req.header("Connection", "close");
             req.header("Cache-Control", "no-cache");
             req.header("Content-Type", "multipart/form-data;boundary=" + BOUNDARY);
+            if (isChunk) {
+                req.header("Content-Range", String.format("bytes %d-%d/%d",
+                                                          offset, offset + length - 1,
+                                                          file.length()));
+                req.header("Content-Disposition", "attachment; filename=\""
+                           + encodeUriComponent(file.getName()) + "\"");
+            }
 
             if (update) {
                 req.send(targetFileParam);
@@ -526,9 +882,11 @@ public class SeafConnection {
             req.send(l3);
             req.send(l4);
 
+            req.bufferSize(transferBufferSize);
             if (monitor != null) {
-                req.bufferSize(MonitoredFileInputStream.BUFFER_SIZE);
-                req.send(new MonitoredFileInputStream(file, monitor));
+                req.send(new MonitoredFileInputStream(file, offset, length, monitor));
+            } else if (isChunk) {
+                req.send(new MonitoredFileInputStream(file, offset, length, null));
             } else {
                 req.send(new FileInputStream(file));
             }
@@ -536,18 +894,22 @@ public class SeafConnection {
             req.send(CRLF);
             req.send(end);
 
-            if (req.code() != 200)
+            if (req.code() != 200) {
+                SeafConnectionPool.release(req);
                 if (req.message() == null) {
                     throw SeafException.networkException;
                 } else {
                     throw new SeafException(req.code(), req.message());
                 }
+            }
 
-            return new String(req.bytes(), "UTF-8");
+            return new String(SeafConnectionPool.readBody(req), "UTF-8");
         } catch (IOException e) {
+            SeafConnectionPool.abort(req);
             throw SeafException.networkException;
 
         } catch (HttpRequestException e) {
+            SeafConnectionPool.abort(req);
             if (e.getCause() instanceof MonitorCancelledException) {
                 Log.d(DEBUG_TAG, "upload is cancelled");
                 throw SeafException.userCancelledException;
@@ -561,13 +923,15 @@ public class SeafConnection {
                                                  String parentDir,
                                                  String dirName) throws SeafException {
 
+        HttpRequest req = null;
+        pool.acquire();
         try {
             String fullPath = Utils.pathJoin(parentDir, dirName);
             Map<String, Object> params = new HashMap<String, Object>();
             params.put("p", fullPath);
             params.put("reloaddir", "true");
 
-            HttpRequest req = prepareApiPostRequest("api2/repos/" + repoID + "/dir/", true, params);
+            req = prepareApiPostRequest("api2/repos/" + repoID + "/dir/", true, params);
 
             req.form("operation", "mkdir");
 
@@ -584,7 +948,7 @@ public class SeafConnection {
                 return null;
             }
 
-            String content = new String(req.bytes(), "UTF-8");
+            String content = new String(SeafConnectionPool.readBody(req), "UTF-8");
             if (content.length() == 0) {
                 return null;
             }
@@ -597,6 +961,9 @@ public class SeafConnection {
             throw SeafException.encodingException;
         } catch (HttpRequestException e) {
             throw SeafException.networkException;
+        } finally {
+            SeafConnectionPool.release(req);
+            pool.releaseSlot();
         }
     }
 
@@ -604,13 +971,15 @@ public class SeafConnection {
                                                   String parentDir,
                                                   String fileName) throws SeafException {
 
+        HttpRequest req = null;
+        pool.acquire();
         try {
             String fullPath = Utils.pathJoin(parentDir, fileName);
             Map<String, Object> params = new HashMap<String, Object>();
             params.put("p", fullPath);
             params.put("reloaddir", "true");
 
-            HttpRequest req = prepareApiPostRequest("api2/repos/" + repoID + "/file/", true, params);
+            req = prepareApiPostRequest("api2/repos/" + repoID + "/file/", true, params);
 
             req.form("operation", "create");
 
@@ -627,7 +996,7 @@ public class SeafConnection {
                 return null;
             }
 
-            String content = new String(req.bytes(), "UTF-8");
+            String content = new String(SeafConnectionPool.readBody(req), "UTF-8");
             if (content.length() == 0) {
                 return null;
             }
@@ -640,6 +1009,9 @@ public class SeafConnection {
             throw SeafException.encodingException;
         } catch (HttpRequestException e) {
             throw SeafException.networkException;
+        } finally {
+            SeafConnectionPool.release(req);
+            pool.releaseSlot();
         }
     }
 
@@ -648,25 +1020,51 @@ public class SeafConnection {
      * Wrap a FileInputStream in a upload task. We publish the progress of the upload during the process, and if we detect the task has been cancelled by the user, we throw a {@link MonitorCancelledException} to indicate such a situation.
      */
     private class MonitoredFileInputStream extends InputStream {
-        public static final int BUFFER_SIZE = 1024;
-
-
         private static final long PROGRESS_UPDATE_INTERVAL = 1000;
         private ProgressMonitor monitor;
-        private InputStream src;
-        private long bytesRead = 0;
+        private FileInputStream src;
+        private FileChannel channel;
+        private long position;
+        private final long end;
+        private final byte[] singleByte = new byte[1];
         private long nextUpdate = System.currentTimeMillis() + PROGRESS_UPDATE_INTERVAL;
 
         public MonitoredFileInputStream(File file, ProgressMonitor monitor) throws IOException {
+            this(file, 0, file.length(), monitor);
+        }
+
+        /**
+         * Only read the range [offset, offset + length) of the file. The
+         * progress reported to the monitor counts from the start of the file.
+         */
+        public MonitoredFileInputStream(File file, long offset, long length,
+                                        ProgressMonitor monitor) throws IOException {
             this.src = new FileInputStream(file);
+            this.channel = src.getChannel();
             this.monitor = monitor;
+            this.position = offset;
+            this.end = offset + length;
         }
 
         @Override
         public int read(byte[] buffer) throws IOException {
-            int read = src.read(buffer);
-            if (read != -1) {
-                bytesRead += read;
+            return read(buffer, 0, buffer.length);
+        }
+
+        /**
+         * Read straight from the file channel into the caller's buffer, which
+         * HttpRequest hands to the socket as is.
+         */
+        @Override
+        public int read(byte[] buffer, int off, int len) throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+
+            ByteBuffer bb = ByteBuffer.wrap(buffer, off, (int)Math.min(len, end - position));
+            int read = channel.read(bb, position);
+            if (read > 0) {
+                position += read;
             }
 
             checkMonitor();
@@ -676,15 +1074,8 @@ public class SeafConnection {
 
         @Override
         public int read() throws IOException {
-            int ret = src.read();
-            if (ret != -1) {
-                ++bytesRead;
-                if (bytesRead % BUFFER_SIZE == 0) {
-                    checkMonitor();
-                }
-            }
-
-            return ret;
+            int read = read(singleByte, 0, 1);
+            return read <= 0 ? -1 : singleByte[0] & 0xff;
         }
 
         @Override
@@ -693,14 +1084,19 @@ public class SeafConnection {
         }
 
         private void checkMonitor() throws MonitorCancelledException {
+            if (monitor == null) {
+                return;
+            }
+
             if (monitor.isCancelled() ||
                 Thread.currentThread().isInterrupted()) {
                 throw new MonitorCancelledException();
             }
 
-            if (System.currentTimeMillis() > nextUpdate) {
-                monitor.onProgressNotify(bytesRead);
-                nextUpdate = System.currentTimeMillis() + PROGRESS_UPDATE_INTERVAL;
+            long now = System.currentTimeMillis();
+            if (now > nextUpdate) {
+                monitor.onProgressNotify(position);
+                nextUpdate = now + PROGRESS_UPDATE_INTERVAL;
             }
         }
     }
@@ -709,40 +1105,48 @@ public class SeafConnection {
      * Wrap a FileOutputStream in a download task. We publish the upload progress during the process, and if we detect the task has been cancelled by the user, we throw a {@link MonitorCancelledException} to indicate such a situation.
      */
     private class MonitoredFileOutputStream extends OutputStream {
-        public static final int BUFFER_SIZE = 4096;
-
         private static final long PROGRESS_UPDATE_INTERVAL = 500;
         private ProgressMonitor monitor;
-        private OutputStream dst;
+        private FileOutputStream dst;
+        private FileChannel channel;
         private long bytesWritten = 0;
+        private final byte[] singleByte = new byte[1];
         private long nextUpdate = System.currentTimeMillis() + PROGRESS_UPDATE_INTERVAL;
 
         public MonitoredFileOutputStream(File file, ProgressMonitor monitor) throws IOException {
-            this.dst = new FileOutputStream(file);
+            this(file, 0, monitor);
+        }
+
+        /**
+         * Append to the first offset bytes of the file, which have been
+         * downloaded before. The progress counts from the start of the file.
+         */
+        public MonitoredFileOutputStream(File file, long offset, ProgressMonitor monitor) throws IOException {
+            this.dst = new FileOutputStream(file, offset > 0);
+            this.channel = dst.getChannel();
             this.monitor = monitor;
+            this.bytesWritten = offset;
         }
 
         @Override
         public void write(byte[] buffer, int off, int len) throws IOException {
-            dst.write(buffer, off, len);
+            ByteBuffer bb = ByteBuffer.wrap(buffer, off, len);
+            while (bb.hasRemaining()) {
+                channel.write(bb);
+            }
             bytesWritten += len;
             checkMonitor();
         }
 
         @Override
         public void write(byte[] buffer) throws IOException {
-            dst.write(buffer);
-            bytesWritten += buffer.length;
-            checkMonitor();
+            write(buffer, 0, buffer.length);
         }
 
         @Override
         public void write(int b) throws IOException {
-            dst.write(b);
-            ++bytesWritten;
-            if (bytesWritten % BUFFER_SIZE == 0) {
-                checkMonitor();
-            }
+            singleByte[0] = (byte)b;
+            write(singleByte, 0, 1);
         }
 
         @Override
@@ -756,13 +1160,51 @@ public class SeafConnection {
                 throw new MonitorCancelledException();
             }
 
-            if (System.currentTimeMillis() > nextUpdate) {
+            long now = System.currentTimeMillis();
+            if (now > nextUpdate) {
                 monitor.onProgressNotify(bytesWritten);
-                nextUpdate = System.currentTimeMillis() + PROGRESS_UPDATE_INTERVAL;
+                nextUpdate = now + PROGRESS_UPDATE_INTERVAL;
             }
         }
     }
 
+    /**
+     * Add the number of bytes read from a stream to a counter.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private final AtomicLong counter;
+
+        public CountingInputStream(InputStream in, AtomicLong counter) {
+            super(in);
+            this.counter = counter;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                counter.incrementAndGet();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int off, int len) throws IOException {
+            int n = super.read(buffer, off, len);
+            if (n > 0) {
+                counter.addAndGet(n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            counter.addAndGet(skipped);
+            return skipped;
+        }
+    }
+
     private class MonitorCancelledException extends IOException {
         private static final long serialVersionUID = -1170466989781746232L;
 
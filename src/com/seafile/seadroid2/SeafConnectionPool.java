@@ -0,0 +1,227 @@
+package com.seafile.seadroid2;
+
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.Semaphore;
+
+import android.util.Log;
+
+import com.github.kevinsawicki.http.HttpRequest;
+import com.github.kevinsawicki.http.HttpRequest.HttpRequestException;
+import com.seafile.seadroid2.account.Account;
+
+/**
+ * Keep the connections to the seafile server alive between api calls.
+ *
+ * HttpRequest is built on HttpURLConnection, which already keeps a pool of
+ * keep-alive sockets per (host, port). A socket only goes back to that pool
+ * when the response body has been fully consumed and the connection is not
+ * disconnected, so every request made by {@link SeafConnection} must be
+ * finished through {@link #release(HttpRequest)}, and its body read with
+ * {@link #readBody(HttpRequest)} so that release knows there is nothing left
+ * to drain.
+ *
+ * The pool is configured once for the whole process by {@link #configure()},
+ * called when the application starts, before any connection is opened:
+ *
+ * - at most {@link #MAX_IDLE_CONNECTIONS_PER_HOST} idle sockets are kept for a host
+ * - idle sockets are evicted after {@link #KEEP_ALIVE_DURATION} ms
+ *
+ * On top of that every account gets at most {@link #MAX_REQUESTS_PER_HOST}
+ * api requests in flight, so that a burst of api calls does not open more
+ * sockets than the pool is able to keep. File uploads and single stream
+ * downloads go to the seafile httpserver and are not counted, but they still
+ * reuse its sockets; the segments of a segmented download are counted.
+ * Background requests, e.g. prefetches and thumbnail fetches, never hold the
+ * last slot, see {@link #acquireBackground()}.
+ */
+public class SeafConnectionPool {
+    private static final String DEBUG_TAG = "SeafConnectionPool";
+
+    public static final int MAX_IDLE_CONNECTIONS_PER_HOST = 5;
+    public static final int MAX_REQUESTS_PER_HOST = 4;
+    public static final long KEEP_ALIVE_DURATION = 60 * 1000;
+
+    private static final int DRAIN_BUFFER_SIZE = 4096;
+
+    private static boolean configured = false;
+    private static HashMap<Account, SeafConnectionPool> pools =
+            new HashMap<Account, SeafConnectionPool>();
+    // The requests whose body has been read to the end and closed
+    private static final WeakHashMap<HttpRequest, Boolean> consumed =
+            new WeakHashMap<HttpRequest, Boolean>();
+
+    private final Semaphore permits;
+    // Taken before a slot by the background requests, so that they hold at
+    // most all the slots but one
+    private final Semaphore backgroundPermits;
+
+    private SeafConnectionPool() {
+        permits = new Semaphore(MAX_REQUESTS_PER_HOST, true);
+        backgroundPermits = new Semaphore(MAX_REQUESTS_PER_HOST - 1, true);
+    }
+
+    /**
+     * Get the connection pool of an account. All SeafConnection instances of
+     * the same account share one pool.
+     */
+    public static synchronized SeafConnectionPool getPool(Account account) {
+        SeafConnectionPool pool = pools.get(account);
+        if (pool == null) {
+            pool = new SeafConnectionPool();
+            pools.put(account, pool);
+        }
+        return pool;
+    }
+
+    public static synchronized void configure() {
+        if (configured) {
+            return;
+        }
+
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections",
+                           String.valueOf(MAX_IDLE_CONNECTIONS_PER_HOST));
+        // Read by the libcore HttpConnectionPool to evict idle sockets
+        System.setProperty("http.keepAliveDuration",
+                           String.valueOf(KEEP_ALIVE_DURATION));
+        configured = true;
+    }
+
+    /**
+     * Wait until a request slot of this account is available.
+     */
+    public void acquire() throws SeafException {
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw SeafException.userCancelledException;
+        }
+    }
+
+    /**
+     * Give back a request slot taken by {@link #acquire()}.
+     */
+    public void releaseSlot() {
+        permits.release();
+    }
+
+    /**
+     * Wait until a request slot is available for a background request. The
+     * background requests together never hold the last slot, so a request
+     * the user is waiting for never queues behind them all.
+     */
+    public void acquireBackground() throws SeafException {
+        try {
+            backgroundPermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw SeafException.userCancelledException;
+        }
+
+        try {
+            acquire();
+        } catch (SeafException e) {
+            backgroundPermits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Give back a request slot taken by {@link #acquireBackground()}.
+     */
+    public void releaseBackground() {
+        permits.release();
+        backgroundPermits.release();
+    }
+
+    /**
+     * Wait for one request slot, then take up to n - 1 more if they are
+     * available right away, always leaving one free for the other requests.
+     *
+     * @return the number of slots taken, to give back with
+     * {@link #releaseSlots(int)}
+     */
+    public int acquireUpTo(int n) throws SeafException {
+        acquire();
+        int taken = 1;
+        synchronized (this) {
+            while (taken < n && permits.availablePermits() > 1 && permits.tryAcquire()) {
+                taken++;
+            }
+        }
+        return taken;
+    }
+
+    public void releaseSlots(int n) {
+        permits.release(n);
+    }
+
+    /**
+     * Prepare a request for the seafile httpserver, e.g. a file download.
+     */
+    public static HttpRequest prepareFileGetRequest(String url) throws HttpRequestException {
+        return HttpRequest.get(url).
+                trustAllCerts().trustAllHosts().
+                readTimeout(30000).connectTimeout(15000);
+    }
+
+    /**
+     * Read the whole response body of a request, which then needs no
+     * draining in {@link #release(HttpRequest)}.
+     */
+    public static byte[] readBody(HttpRequest req) throws HttpRequestException {
+        byte[] body = req.bytes();
+        synchronized (consumed) {
+            consumed.put(req, Boolean.TRUE);
+        }
+        return body;
+    }
+
+    /**
+     * Finish a request so that its socket can be reused by the next one.
+     * Unless it has been read already, whatever is left of the response body
+     * (including error bodies) is read and dropped, then the stream is
+     * closed.
+     */
+    public static void release(HttpRequest req) {
+        if (req == null) {
+            return;
+        }
+
+        synchronized (consumed) {
+            if (consumed.remove(req) != null) {
+                return;
+            }
+        }
+
+        try {
+            byte[] buffer = new byte[DRAIN_BUFFER_SIZE];
+            InputStream in = req.stream();
+            try {
+                while (in.read(buffer) != -1) {
+                    // discard
+                }
+            } finally {
+                in.close();
+            }
+        } catch (Exception e) {
+            Log.d(DEBUG_TAG, "failed to drain response: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Close the socket of a request which has been cancelled or has failed
+     * in the middle of a transfer. Draining it would mean downloading the
+     * rest of the body, and it's unsafe to reuse anyway.
+     */
+    public static void abort(HttpRequest req) {
+        if (req == null) {
+            return;
+        }
+
+        req.disconnect();
+    }
+}
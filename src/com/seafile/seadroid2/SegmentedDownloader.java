@@ -0,0 +1,224 @@
+package com.seafile.seadroid2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+import com.github.kevinsawicki.http.HttpRequest;
+import com.github.kevinsawicki.http.HttpRequest.HttpRequestException;
+import com.seafile.seadroid2.data.DataManager.ProgressMonitor;
+
+/**
+ * Download a large file with several concurrent "Range" requests.
+ *
+ * The target file is preallocated to its full size, and each segment writes
+ * its bytes at their own position of the file. The calling thread waits for
+ * the segments and reports their merged progress to the {@link ProgressMonitor},
+ * just like a single stream download does: first the total size, then the
+ * number of bytes downloaded so far.
+ *
+ * The file written is not a prefix of the real file until all the segments
+ * finish, so it is deleted if the download fails or is cancelled.
+ *
+ * Each segment takes a request slot of the account's {@link SeafConnectionPool},
+ * so a segmented download never opens more sockets than the per host limit,
+ * and always leaves one slot to the api requests. When slots are short the
+ * file is split in fewer segments.
+ */
+class SegmentedDownloader {
+    private static final String DEBUG_TAG = "SegmentedDownloader";
+
+    private static final long PROGRESS_UPDATE_INTERVAL = 500;
+
+    private final SeafConnectionPool pool;
+    private final String url;
+    private final File file;
+    private final long size;
+    private final int segments;
+    private final ProgressMonitor monitor;
+
+    private final AtomicLong downloaded = new AtomicLong(0);
+    private volatile boolean aborted = false;
+    private SeafException err = null;
+
+    public SegmentedDownloader(SeafConnectionPool pool, String url, File file, long size,
+                               int segments, ProgressMonitor monitor) {
+        this.pool = pool;
+        this.url = url;
+        this.file = file;
+        this.size = size;
+        this.segments = segments;
+        this.monitor = monitor;
+    }
+
+    public void download() throws SeafException {
+        RandomAccessFile raf = null;
+        List<Segment> workers = new ArrayList<Segment>();
+        int slots = pool.acquireUpTo(segments);
+
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            raf.setLength(size);
+            FileChannel channel = raf.getChannel();
+
+            long segmentSize = (size + slots - 1) / slots;
+            for (long start = 0; start < size; start += segmentSize) {
+                long end = Math.min(start + segmentSize, size) - 1;
+                Segment segment = new Segment(channel, start, end);
+                workers.add(segment);
+                segment.start();
+            }
+
+            if (monitor != null) {
+                monitor.onProgressNotify(size);
+            }
+
+            waitForSegments(workers);
+
+            synchronized (this) {
+                if (err != null) {
+                    throw err;
+                }
+            }
+        } catch (IOException e) {
+            Log.d(DEBUG_TAG, "failed to prepare " + file.getPath() + ": " + e.getMessage());
+            abort(workers);
+            throw SeafException.networkException;
+        } catch (SeafException e) {
+            abort(workers);
+            throw e;
+        } finally {
+            pool.releaseSlots(slots);
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+            if (aborted) {
+                file.delete();
+            }
+        }
+    }
+
+    private void waitForSegments(List<Segment> workers) throws SeafException {
+        for (Segment segment : workers) {
+            while (segment.isAlive()) {
+                try {
+                    segment.join(PROGRESS_UPDATE_INTERVAL);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw SeafException.userCancelledException;
+                }
+
+                synchronized (this) {
+                    if (err != null) {
+                        throw err;
+                    }
+                }
+
+                if (monitor != null) {
+                    if (monitor.isCancelled() || Thread.currentThread().isInterrupted()) {
+                        Log.d(DEBUG_TAG, "download is cancelled");
+                        throw SeafException.userCancelledException;
+                    }
+                    monitor.onProgressNotify(downloaded.get());
+                }
+            }
+        }
+    }
+
+    private void abort(List<Segment> workers) {
+        aborted = true;
+        for (Segment segment : workers) {
+            segment.cancel();
+        }
+        for (Segment segment : workers) {
+            try {
+                segment.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private synchronized void onSegmentFailed(SeafException e) {
+        if (err == null) {
+            err = e;
+        }
+        aborted = true;
+    }
+
+    private class Segment extends Thread {
+        private final FileChannel channel;
+        private final long start, end;
+        private volatile HttpRequest req;
+
+        public Segment(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+        }
+
+        public void cancel() {
+            HttpRequest r = req;
+            if (r != null) {
+                r.disconnect();
+            }
+        }
+
+        @Override
+        public void run() {
+            boolean complete = false;
+            try {
+                req = SeafConnectionPool.prepareFileGetRequest(url).
+                        header("Range", "bytes=" + start + "-" + end);
+                if (req.code() != 206) {
+                    onSegmentFailed(new SeafException(req.code(), "Range not satisfied"));
+                    return;
+                }
+
+                InputStream in = req.stream();
+                byte[] buffer = new byte[SeafConnection.getTransferBufferSize()];
+                long position = start;
+                int len;
+                while (!aborted && position <= end && (len = in.read(buffer)) != -1) {
+                    ByteBuffer bb = ByteBuffer.wrap(buffer, 0, len);
+                    while (bb.hasRemaining()) {
+                        position += channel.write(bb, position);
+                    }
+                    downloaded.addAndGet(len);
+                }
+
+                if (position <= end) {
+                    if (!aborted) {
+                        onSegmentFailed(SeafException.networkException);
+                    }
+                } else {
+                    complete = true;
+                }
+            } catch (IOException e) {
+                onSegmentFailed(SeafException.networkException);
+            } catch (HttpRequestException e) {
+                onSegmentFailed(SeafException.networkException);
+            } finally {
+                if (complete) {
+                    SeafConnectionPool.release(req);
+                } else {
+                    // e.g. a reply other than 206, or a segment cut short
+                    SeafConnectionPool.abort(req);
+                }
+            }
+        }
+    }
+}
@@ -2,20 +2,47 @@ package com.seafile.seadroid2;
 
 import java.io.File;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Process;
 import android.util.Log;
 
 import com.seafile.seadroid2.account.Account;
+import com.seafile.seadroid2.account.AccountManager;
 import com.seafile.seadroid2.data.DataManager;
 import com.seafile.seadroid2.data.DataManager.ProgressMonitor;
+import com.seafile.seadroid2.data.DatabaseHelper;
+import com.seafile.seadroid2.data.TransferRecord;
 
 /**
  * Manages file downloading and uploading.
  *
- * Currently use an AsyncTask for an file.
+ * Currently use an AsyncTask for an file. The tasks are started by a
+ * {@link TransferScheduler}, one for uploads and one for downloads, which
+ * bound the number of concurrent transfers.
+ *
+ * The tasks are kept in a {@link TransferTaskRegistry}, and the state of a
+ * task only changes by compare-and-set, so the manager may be used from the
+ * binder threads as well as from the AsyncTask callbacks.
+ *
+ * Every unfinished task is also saved in the database, so that the queue can
+ * be restored by {@link #restoreTasks(AccountManager)} when the service is
+ * started again after the process has been killed. The records of new tasks
+ * are inserted, and those of finished tasks deleted, on a background record
+ * writer thread, so that adding a task never waits for the disk. Progress
+ * updates only mark the record of a task as dirty; the dirty records are
+ * written together every {@link #RECORD_FLUSH_INTERVAL} ms.
  */
 public class TransferManager {
 
@@ -37,16 +64,71 @@ public class TransferManager {
 
     }
 
-    private ArrayList<UploadTask> uploadTasks;
-    private ArrayList<DownloadTask> downloadTasks;
-    private int notificationID;
+    public static final int DEFAULT_MAX_UPLOADS = 2;
+    public static final int DEFAULT_MAX_DOWNLOADS = 3;
+
+    private static final long RECORD_FLUSH_INTERVAL = 2000;
+
+    /**
+     * Inserts and deletes the task records in order, so that the record of a
+     * task is always deleted after it has been inserted.
+     */
+    private static final ThreadPoolExecutor recordWriter =
+            new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                                   new LinkedBlockingQueue<Runnable>(),
+                                   new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "TransferRecordWriter");
+        }
+    });
+
+    /**
+     * A task saved in the database. Its record id is -1 until the record has
+     * been inserted by the record writer.
+     */
+    private interface RecordedTask {
+        public TransferRecord toRecord();
+        public long getRecordID();
+        public void setRecordID(long recordID);
+    }
+
+    private TransferTaskRegistry<UploadTask> uploadTasks;
+    private TransferTaskRegistry<DownloadTask> downloadTasks;
+    private TransferScheduler uploadScheduler;
+    private TransferScheduler downloadScheduler;
+    private AtomicInteger notificationID;
     TransferListener listener;
 
+    private DatabaseHelper dbHelper;
+    private ConcurrentHashMap<Long, TransferRecord> dirtyRecords;
+    private Handler handler;
+    private AtomicBoolean flushScheduled;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flushRecords();
+        }
+    };
+
     public TransferManager() {
-        notificationID = 0;
-        uploadTasks = new ArrayList<UploadTask>();
-        downloadTasks = new ArrayList<DownloadTask>();
+        notificationID = new AtomicInteger(0);
+        uploadTasks = new TransferTaskRegistry<UploadTask>();
+        downloadTasks = new TransferTaskRegistry<DownloadTask>();
+        uploadScheduler = new TransferScheduler(DEFAULT_MAX_UPLOADS);
+        downloadScheduler = new TransferScheduler(DEFAULT_MAX_DOWNLOADS);
         listener = null;
+        dbHelper = DatabaseHelper.getDatabaseHelper();
+        dirtyRecords = new ConcurrentHashMap<Long, TransferRecord>();
+        handler = new Handler();
+        flushScheduled = new AtomicBoolean(false);
     }
 
     public void setListener(TransferListener listener) {
@@ -57,73 +139,311 @@ public class TransferManager {
         listener = null;
     }
 
+    /**
+     * Move a task from INIT or TRANSFERRING to another state.
+     *
+     * @return false if the task has already finished, failed or been cancelled
+     */
+    private static boolean moveFromActive(AtomicReference<TaskState> state, TaskState to) {
+        while (true) {
+            TaskState current = state.get();
+            if (current != TaskState.INIT && current != TaskState.TRANSFERRING) {
+                return false;
+            }
+            if (state.compareAndSet(current, to)) {
+                return true;
+            }
+        }
+    }
+
+    private static boolean isActive(TaskState state) {
+        return state == TaskState.INIT || state == TaskState.TRANSFERRING;
+    }
+
     /**
      * Add a new upload task
      */
     public int addUploadTask(Account account, String repoID, String repoName,
                               String dir, String filePath, boolean isUpdate) {
-        Iterator<UploadTask> iter = uploadTasks.iterator();
-        while (iter.hasNext()) {
-            UploadTask task = iter.next();
-            if (task.myRepoID.equals(repoID) && task.myPath.equals(filePath)) {
-                if (task.myState == TaskState.CANCELLED || task.myState == TaskState.FAILED
-                        || task.myState == TaskState.FINISHED) {
-                    // If there is a duplicate, but it has failed or been
-                    // cancelled, remove it first
-                    iter.remove();
-                    break;
-                } else {
-                    // A duplicate task is uploading
-                    return task.getTaskID();
-                }
-            }
+        return addUploadTask(account, repoID, repoName, dir, filePath, isUpdate,
+                             TransferScheduler.Priority.NORMAL);
+    }
+
+    /**
+     * Add a new upload task with the given priority
+     */
+    public int addUploadTask(Account account, String repoID, String repoName,
+                              String dir, String filePath, boolean isUpdate,
+                              TransferScheduler.Priority priority) {
+        UploadTask task = new UploadTask(account, repoID, repoName, dir, filePath,
+                                         isUpdate, priority, -1);
+        UploadTask duplicate = registerUploadTask(task);
+        if (duplicate != null) {
+            // A duplicate task is uploading
+            return duplicate.getTaskID();
         }
 
-        UploadTask task = new UploadTask(account, repoID, repoName, dir, filePath, isUpdate);
-        task.execute();
+        saveRecords(Collections.singletonList(task), null);
+        uploadScheduler.enqueue(task, priority);
         return task.getTaskID();
     }
 
     /**
-     * Add a new download task
+     * Add the upload tasks of a batch of new files to the same dir, e.g. the
+     * photos picked by the user. The tasks reuse the cached upload link of
+     * the repo, so the link is fetched once for the batch rather than once
+     * per file, and the files go over the keep-alive connections of the
+     * account.
+     *
+     * The tasks are registered first, then their records are all written in
+     * one transaction by the record writer, and only then are the tasks
+     * queued, so a large batch doesn't cost one disk sync per file.
+     *
+     * @return the task ids, in the order of the files
+     */
+    public int[] addUploadTasks(Account account, String repoID, String repoName,
+                                String dir, List<String> filePaths,
+                                final TransferScheduler.Priority priority) {
+        int[] taskIDs = new int[filePaths.size()];
+        final List<UploadTask> added = new ArrayList<UploadTask>(taskIDs.length);
+        for (int i = 0; i < taskIDs.length; i++) {
+            UploadTask task = new UploadTask(account, repoID, repoName, dir, filePaths.get(i),
+                                             false, priority, -1);
+            UploadTask duplicate = registerUploadTask(task);
+            if (duplicate != null) {
+                // A duplicate task is uploading
+                taskIDs[i] = duplicate.getTaskID();
+                continue;
+            }
+            taskIDs[i] = task.getTaskID();
+            added.add(task);
+        }
+
+        if (!added.isEmpty()) {
+            saveRecords(added, new Runnable() {
+                @Override
+                public void run() {
+                    for (UploadTask task : added) {
+                        task.enqueue();
+                    }
+                }
+            });
+        }
+        return taskIDs;
+    }
+
+    /**
+     * Register a new upload task. If there is a duplicate, but it has failed
+     * or been cancelled, it's replaced by the new task. The record of a new
+     * task is saved by the caller.
+     *
+     * @return the duplicate task if it's still active, in which case the new
+     * task is dropped, or null
+     */
+    private UploadTask registerUploadTask(UploadTask task) {
+        while (true) {
+            UploadTask old = uploadTasks.putIfAbsent(task);
+            if (old == null) {
+                break;
+            }
+            if (isActive(old.getState())) {
+                return old;
+            }
+            if (uploadTasks.replace(old, task)) {
+                deleteRecord(old);
+                break;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Add a new download task. Downloads are started because the user wants
+     * to open a file, so they have a high priority by default.
      */
     public int addDownloadTask(Account account,
                                String repoName,
                                String repoID,
                                String path) {
-        Iterator<DownloadTask> iter = downloadTasks.iterator();
-        while (iter.hasNext()) {
-            DownloadTask task = iter.next();
-            if (task.myRepoID.equals(repoID) && task.myPath.equals(path)) {
-                if (task.myState == TaskState.CANCELLED || task.myState == TaskState.FAILED
-                        || task.myState == TaskState.FINISHED) {
-                    // If there is a duplicate, but it has failed or been
-                    // cancelled, remove it first
-                    iter.remove();
-                    break;
+        return addDownloadTask(account, repoName, repoID, path,
+                               TransferScheduler.Priority.HIGH);
+    }
+
+    /**
+     * Add a new download task with the given priority
+     */
+    public int addDownloadTask(Account account,
+                               String repoName,
+                               String repoID,
+                               String path,
+                               TransferScheduler.Priority priority) {
+        DownloadTask task = new DownloadTask(account, repoName, repoID, path, priority, -1);
+        DownloadTask duplicate = registerDownloadTask(task);
+        if (duplicate != null) {
+            // A duplicate task is downloading
+            return duplicate.getTaskID();
+        }
+
+        saveRecords(Collections.singletonList(task), null);
+        downloadScheduler.enqueue(task, priority);
+        return task.getTaskID();
+    }
+
+    /**
+     * @see #registerUploadTask(UploadTask)
+     */
+    private DownloadTask registerDownloadTask(DownloadTask task) {
+        while (true) {
+            DownloadTask old = downloadTasks.putIfAbsent(task);
+            if (old == null) {
+                break;
+            }
+            if (isActive(old.getState())) {
+                return old;
+            }
+            if (downloadTasks.replace(old, task)) {
+                deleteRecord(old);
+                break;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Restore the tasks saved before the process was killed. Pending tasks
+     * are queued again; an interrupted transfer picks up where it stopped
+     * from the partial file or the uploaded chunks. Failed uploads are
+     * restored as failed so that the user can still retry them.
+     */
+    public void restoreTasks(AccountManager accountManager) {
+        for (TransferRecord record : dbHelper.getTransferRecords()) {
+            Account account = accountManager.getAccount(record.server, record.email);
+            if (account == null) {
+                // The account has been removed
+                dbHelper.deleteTransferRecord(record.id);
+                continue;
+            }
+
+            TransferScheduler.Priority priority = TransferScheduler.Priority.valueOf(record.priority);
+            TaskState state = TaskState.valueOf(record.state);
+
+            if (record.type == TransferRecord.TYPE_UPLOAD) {
+                if (!new File(record.path).exists()) {
+                    dbHelper.deleteTransferRecord(record.id);
+                    continue;
+                }
+
+                UploadTask task = new UploadTask(account, record.repoID, record.repoName,
+                                                 record.dir, record.path, record.isUpdate,
+                                                 priority, record.id);
+                if (state == TaskState.FAILED) {
+                    task.myState.set(TaskState.FAILED);
+                    task.myUploaded = record.transferred;
+                    task.err = new SeafException(record.errCode, record.errMsg);
+                }
+                if (registerUploadTask(task) != null) {
+                    dbHelper.deleteTransferRecord(record.id);
+                } else if (state != TaskState.FAILED) {
+                    uploadScheduler.enqueue(task, priority);
+                }
+            } else {
+                DownloadTask task = new DownloadTask(account, record.repoName, record.repoID,
+                                                     record.path, priority, record.id);
+                if (registerDownloadTask(task) != null) {
+                    dbHelper.deleteTransferRecord(record.id);
                 } else {
-                    // A duplicate task is downloading
-                    return task.getTaskID();
+                    downloadScheduler.enqueue(task, priority);
                 }
             }
+            Log.d(DEBUG_TAG, "restored " + record.state + " task of " + record.path);
         }
+    }
 
-        DownloadTask task = new DownloadTask(account, repoName, repoID, path);
-        task.execute();
-        return task.getTaskID();
+    /**
+     * Write all the dirty task records now, e.g. when the service is stopped.
+     */
+    public void flushRecords() {
+        handler.removeCallbacks(flushTask);
+        flushScheduled.set(false);
+        if (dirtyRecords.isEmpty()) {
+            return;
+        }
+
+        List<TransferRecord> records = new ArrayList<TransferRecord>(dirtyRecords.values());
+        dbHelper.updateTransferRecords(records);
+        for (TransferRecord record : records) {
+            // Keep the record if it has been updated again in the meantime
+            dirtyRecords.remove(record.id, record);
+        }
     }
 
-    private UploadTask getUploadTaskByID(int taskID) {
-        for (UploadTask task : uploadTasks) {
-            if (task.getTaskID() == taskID) {
-                return task;
+    /**
+     * Insert the records of new tasks on the record writer thread, all in one
+     * transaction, then post onSaved, if any, to the handler.
+     */
+    private void saveRecords(final List<? extends RecordedTask> tasks, final Runnable onSaved) {
+        recordWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<TransferRecord> records = new ArrayList<TransferRecord>(tasks.size());
+                for (RecordedTask task : tasks) {
+                    records.add(task.toRecord());
+                }
+                dbHelper.saveTransferRecords(records);
+
+                for (int i = 0; i < records.size(); i++) {
+                    RecordedTask task = tasks.get(i);
+                    TransferRecord saved = records.get(i);
+                    task.setRecordID(saved.id);
+                    // The updates made while the record was written were
+                    // dropped, as it had no id yet
+                    TransferRecord current = task.toRecord();
+                    if (!current.state.equals(saved.state)
+                            || current.transferred != saved.transferred
+                            || current.total != saved.total) {
+                        markRecordDirty(current);
+                    }
+                }
+
+                if (onSaved != null) {
+                    handler.post(onSaved);
+                }
             }
+        });
+    }
+
+    private void markRecordDirty(TransferRecord record) {
+        if (record.id == -1) {
+            return;
+        }
+
+        dirtyRecords.put(record.id, record);
+        if (flushScheduled.compareAndSet(false, true)) {
+            handler.postDelayed(flushTask, RECORD_FLUSH_INTERVAL);
         }
-        return null;
+    }
+
+    /**
+     * Delete the record of a task on the record writer thread, after it has
+     * been inserted if that is still pending.
+     */
+    private void deleteRecord(final RecordedTask task) {
+        recordWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                long recordID = task.getRecordID();
+                if (recordID == -1) {
+                    return;
+                }
+
+                dirtyRecords.remove(recordID);
+                dbHelper.deleteTransferRecord(recordID);
+            }
+        });
     }
 
     public UploadTaskInfo getUploadTaskInfo (int taskID) {
-        UploadTask task = getUploadTaskByID(taskID);
+        UploadTask task = uploadTasks.get(taskID);
         if (task != null) {
             return task.getTaskInfo();
         }
@@ -133,7 +453,7 @@ public class TransferManager {
 
     public List<UploadTaskInfo> getAllUploadTaskInfos() {
         ArrayList<UploadTaskInfo> infos = new ArrayList<UploadTaskInfo>();
-        for (UploadTask task : uploadTasks) {
+        for (UploadTask task : uploadTasks.getAll()) {
             infos.add(task.getTaskInfo());
         }
 
@@ -141,54 +461,68 @@ public class TransferManager {
     }
 
     public void removeUploadTask(int taskID) {
-        UploadTask task = getUploadTaskByID(taskID);
-        if (task != null) {
-            uploadTasks.remove(task);
+        UploadTask task = uploadTasks.get(taskID);
+        if (task != null && uploadTasks.remove(task)) {
+            deleteRecord(task);
         }
     }
 
     public void removeFinishedUploadTasks() {
-        Iterator<UploadTask> iter = uploadTasks.iterator();
-        while (iter.hasNext()) {
-            UploadTask task = iter.next();
+        for (UploadTask task : uploadTasks.getAll()) {
             if (task.getState() == TaskState.FINISHED) {
-                iter.remove();
+                uploadTasks.remove(task);
             }
         }
     }
 
     public void cancelUploadTask(int taskID) {
-        UploadTask task = getUploadTaskByID(taskID);
+        UploadTask task = uploadTasks.get(taskID);
         if (task != null) {
             task.cancelUpload();
         }
     }
 
     public void cancelDownloadTask(int taskID) {
-        DownloadTask task = getDownloadTaskByID(taskID);
+        DownloadTask task = downloadTasks.get(taskID);
         if (task != null) {
             task.cancelDownload();
         }
     }
 
     public void retryUploadTask(int taskID) {
-        UploadTask task = getUploadTaskByID(taskID);
+        UploadTask task = uploadTasks.get(taskID);
         if (task != null) {
             task.retryUpload();
         }
     }
 
-    private DownloadTask getDownloadTaskByID(int taskID) {
-        for (DownloadTask task : downloadTasks) {
-            if (task.getTaskID() == taskID) {
-                return task;
-            }
-        }
-        return null;
+    /**
+     * Stop starting queued transfers. Running transfers go on.
+     */
+    public void pauseTransfers() {
+        uploadScheduler.pause();
+        downloadScheduler.pause();
+    }
+
+    public void resumeTransfers() {
+        uploadScheduler.resume();
+        downloadScheduler.resume();
+    }
+
+    public boolean isTransfersPaused() {
+        return uploadScheduler.isPaused();
+    }
+
+    public void setMaxConcurrentUploads(int n) {
+        uploadScheduler.setMaxRunning(n);
+    }
+
+    public void setMaxConcurrentDownloads(int n) {
+        downloadScheduler.setMaxRunning(n);
     }
 
     public DownloadTaskInfo getDownloadTaskInfo (int taskID) {
-        DownloadTask task = getDownloadTaskByID(taskID);
+        DownloadTask task = downloadTasks.get(taskID);
         if (task != null) {
             return task.getTaskInfo();
         }
@@ -196,27 +530,39 @@ public class TransferManager {
         return null;
     }
 
-    private class UploadTask extends AsyncTask<String, Long, Void> {
+    private class UploadTask extends AsyncTask<String, Long, Void>
+                             implements TransferScheduler.Job, TransferTaskRegistry.Entry,
+                                        RecordedTask {
 
         private String myRepoID;
         private String myRepoName;
         private String myDir;   // parent dir
         private String myPath;  // local file path
         private boolean isUpdate;  // true if update an existing file
+        private TransferScheduler.Priority priority;
+        private volatile long recordID;
 
-        private TaskState myState;
+        private final AtomicReference<TaskState> myState;
         private int myID;
-        private long myUploaded;
+        private volatile long myUploaded;
         private long mySize;
         private DataManager dataManager;
+        private volatile UploadTaskInfo snapshot;
 
-        SeafException err;
+        volatile SeafException err;
 
         Account account;
 
+        /**
+         * @param recordID the id of the saved record of this task, or -1 if
+         * a new one is to be saved
+         */
         public UploadTask(Account account, String repoID, String repoName,
-                          String dir, String filePath, boolean isUpdate) {
+                          String dir, String filePath, boolean isUpdate,
+                          TransferScheduler.Priority priority, long recordID) {
             this.account = account;
+            this.priority = priority;
+            this.recordID = recordID;
             this.myRepoID = repoID;
             this.myRepoName = repoName;
             this.myDir = dir;
@@ -227,49 +573,141 @@ public class TransferManager {
             File f = new File(filePath);
             mySize = f.length();
 
-            myID = ++notificationID;
-            myState = TaskState.INIT;
+            myID = notificationID.incrementAndGet();
+            myState = new AtomicReference<TaskState>(TaskState.INIT);
             myUploaded = 0;
-
-            // Log.d(DEBUG_TAG, "stored object is " + myPath + myObjectID);
-            uploadTasks.add(this);
             err = null;
         }
 
+        @Override
+        public long getRecordID() {
+            return recordID;
+        }
+
+        @Override
+        public void setRecordID(long recordID) {
+            this.recordID = recordID;
+        }
+
+        @Override
+        public TransferRecord toRecord() {
+            TransferRecord record = new TransferRecord();
+            record.id = recordID;
+            record.type = TransferRecord.TYPE_UPLOAD;
+            record.server = account.server;
+            record.email = account.email;
+            record.repoID = myRepoID;
+            record.repoName = myRepoName;
+            record.dir = myDir;
+            record.path = myPath;
+            record.isUpdate = isUpdate;
+            record.priority = priority.name();
+            record.state = myState.get().name();
+            record.transferred = myUploaded;
+            record.total = mySize;
+            SeafException e = err;
+            if (e != null) {
+                record.errCode = e.getCode();
+                record.errMsg = e.getMessage();
+            }
+            return record;
+        }
+
+        @Override
         public int getTaskID() {
             return myID;
         }
 
+        @Override
+        public String getRepoID() {
+            return myRepoID;
+        }
+
+        @Override
+        public String getPath() {
+            return myPath;
+        }
+
+        @Override
+        public Account getAccount() {
+            return account;
+        }
+
+        @Override
+        public void start() {
+            ConcurrentAsyncTask.execute(this);
+        }
+
         public TaskState getState() {
-            return myState;
+            return myState.get();
         }
 
+        /**
+         * The info is immutable, so the last one is handed out again as long
+         * as the task has not changed.
+         */
         public UploadTaskInfo getTaskInfo() {
-            UploadTaskInfo info = new UploadTaskInfo(myID, myState, myRepoID,
-                                                     myRepoName, myDir, myPath, isUpdate,
-                                                     myUploaded, mySize, err);
+            TaskState state = myState.get();
+            long uploaded = myUploaded;
+            SeafException e = err;
+            UploadTaskInfo info = snapshot;
+            if (info != null && info.state == state && info.uploadedSize == uploaded
+                    && info.err == e) {
+                return info;
+            }
+
+            info = new UploadTaskInfo(myID, state, myRepoID,
+                                      myRepoName, myDir, myPath, isUpdate,
+                                      uploaded, mySize, e);
+            snapshot = info;
             return info;
         }
 
         public void retryUpload() {
-            if (myState != TaskState.CANCELLED && myState != TaskState.FAILED) {
+            TaskState state = myState.get();
+            if (state != TaskState.CANCELLED && state != TaskState.FAILED) {
                 return;
             }
-            uploadTasks.remove(this);
-            addUploadTask(account, myRepoID, myRepoName, myDir, myPath, isUpdate);
+            // The new task replaces this one in the registry
+            addUploadTask(account, myRepoID, myRepoName, myDir, myPath, isUpdate, priority);
+        }
+
+        /**
+         * Queue a task added in a batch, unless it has been cancelled while
+         * its record was written.
+         */
+        private synchronized void enqueue() {
+            if (myState.get() == TaskState.INIT) {
+                uploadScheduler.enqueue(this, priority);
+            }
         }
 
         public void cancelUpload() {
-            if (myState != TaskState.INIT && myState != TaskState.TRANSFERRING) {
+            boolean removed;
+            synchronized (this) {
+                // Not interleaved with enqueue(), so a task not queued yet
+                // is never queued after it has been cancelled
+                if (!moveFromActive(myState, TaskState.CANCELLED)) {
+                    return;
+                }
+                removed = uploadScheduler.remove(this);
+            }
+            if (removed) {
+                // Never started, so onCancelled() won't be called
+                deleteRecord(this);
+                if (listener != null) {
+                    listener.onFileUploadCancelled(myID);
+                }
                 return;
             }
-            myState = TaskState.CANCELLED;
             super.cancel(true);
         }
 
         @Override
         protected void onPreExecute() {
-            myState = TaskState.TRANSFERRING;
+            if (myState.compareAndSet(TaskState.INIT, TaskState.TRANSFERRING)) {
+                markRecordDirty(toRecord());
+            }
         }
 
         @Override
@@ -277,7 +715,10 @@ public class TransferManager {
             long uploaded = values[0];
             Log.d(DEBUG_TAG, "Uploaded " + uploaded);
             myUploaded = uploaded;
-            listener.onFileUploadProgress(myID);
+            markRecordDirty(toRecord());
+            if (listener != null) {
+                listener.onFileUploadProgress(myID);
+            }
         }
 
         @Override
@@ -309,7 +750,17 @@ public class TransferManager {
 
         @Override
         protected void onPostExecute(Void v) {
-            myState = err == null ? TaskState.FINISHED : TaskState.FAILED;
+            uploadScheduler.onJobFinished(this);
+            TaskState result = err == null ? TaskState.FINISHED : TaskState.FAILED;
+            if (!moveFromActive(myState, result)) {
+                // cancelled in the meantime
+                return;
+            }
+            if (result == TaskState.FINISHED) {
+                deleteRecord(this);
+            } else {
+                markRecordDirty(toRecord());
+            }
             if (listener != null) {
                 if (err == null) {
                     listener.onFileUploaded(myID);
@@ -322,13 +773,17 @@ public class TransferManager {
 
         @Override
         protected void onCancelled() {
+            uploadScheduler.onJobFinished(this);
+            deleteRecord(this);
             if (listener != null) {
                 listener.onFileUploadCancelled(myID);
             }
         }
     }
 
-    private class DownloadTask extends AsyncTask<String, Long, File> {
+    private class DownloadTask extends AsyncTask<String, Long, File>
+                               implements TransferScheduler.Job, TransferTaskRegistry.Entry,
+                                          RecordedTask {
 
         private int taskID;
 
@@ -336,26 +791,60 @@ public class TransferManager {
         private String myRepoName;
         private String myRepoID;
         private String myPath;
-        private long mySize, finished;
-        private TaskState myState;
-        SeafException err;
+        private volatile long mySize, finished;
+        private final AtomicReference<TaskState> myState;
+        private TransferScheduler.Priority priority;
+        private volatile long recordID;
+        private volatile DownloadTaskInfo snapshot;
+        volatile SeafException err;
 
-        public DownloadTask(Account account, String repoName, String repoID, String path) {
+        /**
+         * @param recordID the id of the saved record of this task, or -1 if
+         * a new one is to be saved
+         */
+        public DownloadTask(Account account, String repoName, String repoID, String path,
+                            TransferScheduler.Priority priority, long recordID) {
             this.account = account;
             this.myRepoName = repoName;
             this.myRepoID = repoID;
             this.myPath = path;
-            this.myState = TaskState.INIT;
+            this.myState = new AtomicReference<TaskState>(TaskState.INIT);
+            this.priority = priority;
+            this.recordID = recordID;
 
             // The size of the file would be known in the first progress update
             this.mySize = -1;
-            this.taskID = ++notificationID;
-
-            // Log.d(DEBUG_TAG, "stored object is " + myPath + myObjectID);
-            downloadTasks.add(this);
+            this.taskID = notificationID.incrementAndGet();
             err = null;
         }
 
+        @Override
+        public long getRecordID() {
+            return recordID;
+        }
+
+        @Override
+        public void setRecordID(long recordID) {
+            this.recordID = recordID;
+        }
+
+        @Override
+        public TransferRecord toRecord() {
+            TransferRecord record = new TransferRecord();
+            record.id = recordID;
+            record.type = TransferRecord.TYPE_DOWNLOAD;
+            record.server = account.server;
+            record.email = account.email;
+            record.repoID = myRepoID;
+            record.repoName = myRepoName;
+            record.path = myPath;
+            record.priority = priority.name();
+            record.state = myState.get().name();
+            record.transferred = finished;
+            record.total = mySize;
+            return record;
+        }
+
         /**
          * When downloading a file, we don't know the file size in advance, so
          * we make use of the first progress update to return the file size.
@@ -364,11 +853,14 @@ public class TransferManager {
         protected void onProgressUpdate(Long... values) {
             if (mySize == -1) {
                 mySize = values[0];
-                myState = TaskState.TRANSFERRING;
+                myState.compareAndSet(TaskState.INIT, TaskState.TRANSFERRING);
                 return;
             }
             finished = values[0];
-            listener.onFileDownloadProgress(taskID);
+            markRecordDirty(toRecord());
+            if (listener != null) {
+                listener.onFileDownloadProgress(taskID);
+            }
         }
 
         @Override
@@ -397,14 +889,20 @@ public class TransferManager {
 
         @Override
         protected void onPostExecute(File file) {
+            downloadScheduler.onJobFinished(this);
+            // A failed download is not kept, the user has to open the file again
+            deleteRecord(this);
+            if (file == null && err == null) {
+                err = SeafException.unknownException;
+            }
+            if (!moveFromActive(myState, file != null ? TaskState.FINISHED : TaskState.FAILED)) {
+                // cancelled in the meantime
+                return;
+            }
             if (listener != null) {
                 if (file != null) {
-                    myState = TaskState.FINISHED;
                     listener.onFileDownloaded(taskID);
                 } else {
-                    myState = TaskState.FAILED;
-                    if (err == null)
-                        err = SeafException.unknownException;
                     listener.onFileDownloadFailed(taskID);
                 }
             }
@@ -412,24 +910,68 @@ public class TransferManager {
 
         @Override
         protected void onCancelled() {
-            myState = TaskState.CANCELLED;
+            downloadScheduler.onJobFinished(this);
+            deleteRecord(this);
+            myState.set(TaskState.CANCELLED);
         }
 
+        @Override
         public int getTaskID() {
             return taskID;
         }
 
+        @Override
+        public String getRepoID() {
+            return myRepoID;
+        }
+
+        @Override
+        public String getPath() {
+            return myPath;
+        }
+
+        public TaskState getState() {
+            return myState.get();
+        }
+
+        @Override
+        public Account getAccount() {
+            return account;
+        }
+
+        @Override
+        public void start() {
+            ConcurrentAsyncTask.execute(this);
+        }
+
+        /**
+         * @see UploadTask#getTaskInfo()
+         */
         public DownloadTaskInfo getTaskInfo() {
-            DownloadTaskInfo info = new DownloadTaskInfo(taskID, myState, myRepoID,
-                                                         myRepoName, myPath, mySize, finished, err);
+            TaskState state = myState.get();
+            long size = mySize;
+            long done = finished;
+            SeafException e = err;
+            DownloadTaskInfo info = snapshot;
+            if (info != null && info.state == state && info.fileSize == size
+                    && info.finished == done && info.err == e) {
+                return info;
+            }
+
+            info = new DownloadTaskInfo(taskID, state, myRepoID,
+                                        myRepoName, myPath, size, done, e);
+            snapshot = info;
             return info;
         }
 
         public void cancelDownload() {
-            if (myState != TaskState.INIT && myState != TaskState.TRANSFERRING) {
+            if (!moveFromActive(myState, TaskState.CANCELLED)) {
+                return;
+            }
+            if (downloadScheduler.remove(this)) {
+                deleteRecord(this);
                 return;
             }
-            myState = TaskState.CANCELLED;
             super.cancel(true);
         }
     }
@@ -0,0 +1,171 @@
+package com.seafile.seadroid2;
+
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+
+import android.util.Log;
+
+import com.seafile.seadroid2.account.Account;
+
+/**
+ * Decides when the queued transfer tasks are started.
+ *
+ * At most {@link #getMaxRunning()} jobs run at the same time. The next job to
+ * start is taken from the highest non-empty priority class; inside a class
+ * the accounts take turns, and the jobs of an account start in the order
+ * they were added.
+ *
+ * The scheduler is only used from the main thread, like the AsyncTask
+ * callbacks which report the end of a job.
+ */
+public class TransferScheduler {
+    private static final String DEBUG_TAG = "TransferScheduler";
+
+    public enum Priority {
+        /** A file the user is waiting for, e.g. one just opened */
+        HIGH,
+        /** A single file picked by the user */
+        NORMAL,
+        /** Bulk transfers, e.g. a batch of photos */
+        LOW
+    }
+
+    public interface Job {
+        public Account getAccount();
+
+        /**
+         * Start the job. The job must call {@link TransferScheduler#onJobFinished(Job)}
+         * when it's done, whatever the result is.
+         */
+        public void start();
+    }
+
+    private final EnumMap<Priority, LinkedHashMap<Account, LinkedList<Job>>> queues;
+    private final LinkedList<Job> runningJobs;
+    private int maxRunning;
+    private boolean paused;
+
+    public TransferScheduler(int maxRunning) {
+        this.maxRunning = maxRunning;
+        this.paused = false;
+        this.runningJobs = new LinkedList<Job>();
+        this.queues = new EnumMap<Priority, LinkedHashMap<Account, LinkedList<Job>>>(Priority.class);
+        for (Priority p : Priority.values()) {
+            queues.put(p, new LinkedHashMap<Account, LinkedList<Job>>());
+        }
+    }
+
+    public synchronized void enqueue(Job job, Priority priority) {
+        LinkedHashMap<Account, LinkedList<Job>> accounts = queues.get(priority);
+        LinkedList<Job> jobs = accounts.get(job.getAccount());
+        if (jobs == null) {
+            jobs = new LinkedList<Job>();
+            accounts.put(job.getAccount(), jobs);
+        }
+        jobs.add(job);
+        schedule();
+    }
+
+    /**
+     * Remove a job which has not been started yet.
+     *
+     * @return true if the job was waiting in the queue
+     */
+    public synchronized boolean remove(Job job) {
+        for (LinkedHashMap<Account, LinkedList<Job>> accounts : queues.values()) {
+            LinkedList<Job> jobs = accounts.get(job.getAccount());
+            if (jobs != null && jobs.remove(job)) {
+                if (jobs.isEmpty()) {
+                    accounts.remove(job.getAccount());
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized void onJobFinished(Job job) {
+        if (runningJobs.remove(job)) {
+            schedule();
+        }
+    }
+
+    /**
+     * Stop starting new jobs. The running jobs are not affected.
+     */
+    public synchronized void pause() {
+        paused = true;
+    }
+
+    public synchronized void resume() {
+        paused = false;
+        schedule();
+    }
+
+    public synchronized boolean isPaused() {
+        return paused;
+    }
+
+    public synchronized int getMaxRunning() {
+        return maxRunning;
+    }
+
+    public synchronized void setMaxRunning(int maxRunning) {
+        if (maxRunning < 1) {
+            maxRunning = 1;
+        }
+        this.maxRunning = maxRunning;
+        schedule();
+    }
+
+    public synchronized int getRunningCount() {
+        return runningJobs.size();
+    }
+
+    public synchronized int getQueuedCount() {
+        int n = 0;
+        for (LinkedHashMap<Account, LinkedList<Job>> accounts : queues.values()) {
+            for (LinkedList<Job> jobs : accounts.values()) {
+                n += jobs.size();
+            }
+        }
+        return n;
+    }
+
+    private void schedule() {
+        while (!paused && runningJobs.size() < maxRunning) {
+            Job job = next();
+            if (job == null) {
+                return;
+            }
+            runningJobs.add(job);
+            job.start();
+        }
+    }
+
+    /**
+     * Take the next job out of the queues, and send its account to the end of
+     * the round.
+     */
+    private Job next() {
+        for (Priority p : Priority.values()) {
+            LinkedHashMap<Account, LinkedList<Job>> accounts = queues.get(p);
+            Iterator<Account> iter = accounts.keySet().iterator();
+            if (!iter.hasNext()) {
+                continue;
+            }
+
+            Account account = iter.next();
+            LinkedList<Job> jobs = accounts.remove(account);
+            Job job = jobs.poll();
+            if (!jobs.isEmpty()) {
+                accounts.put(account, jobs);
+            }
+            Log.d(DEBUG_TAG, "start a " + p + " job of " + account.getEmail());
+            return job;
+        }
+        return null;
+    }
+}
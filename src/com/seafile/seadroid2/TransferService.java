@@ -11,9 +11,20 @@ import android.support.v4.content.LocalBroadcastManager;
 import com.seafile.seadroid2.TransferManager.DownloadTaskInfo;
 import com.seafile.seadroid2.TransferManager.TransferListener;
 import com.seafile.seadroid2.TransferManager.UploadTaskInfo;
+import com.seafile.seadroid2.TransferScheduler.Priority;
 import com.seafile.seadroid2.account.Account;
-
-public class TransferService extends Service implements TransferListener {
+import com.seafile.seadroid2.account.AccountManager;
+
+/**
+ * Runs the transfer tasks and reports them with local broadcasts.
+ *
+ * Progress events are merged by a {@link ProgressCoalescer}: a progress
+ * broadcast carries the ids of all the tasks which made progress since the
+ * last one in its "taskIDs" extra. The other events are sent right away with
+ * a single "taskID".
+ */
+public class TransferService extends Service implements TransferListener,
+                                                        ProgressCoalescer.Sink {
 
     @SuppressWarnings("unused")
     private static final String DEBUG_TAG = "TransferService";
@@ -23,6 +34,7 @@ public class TransferService extends Service implements TransferListener {
 
     private final IBinder mBinder = new TransferBinder();
     private TransferManager txManager;
+    private ProgressCoalescer progressCoalescer;
 
     public static final String BROADCAST_FILE_DOWNLOAD_SUCCESS = "downloaded";
     public static final String BROADCAST_FILE_DOWNLOAD_FAILED = "downloadFailed";
@@ -35,13 +47,17 @@ public class TransferService extends Service implements TransferListener {
 
     @Override
     public void onCreate() {
+        progressCoalescer = new ProgressCoalescer(this);
         txManager = new TransferManager();
         txManager.setListener(this);
+        txManager.restoreTasks(new AccountManager(this));
     }
 
     @Override
     public void onDestroy() {
+        txManager.flushRecords();
         txManager.unsetListener();
+        progressCoalescer.stop();
     }
 
     @Override
@@ -66,6 +82,17 @@ public class TransferService extends Service implements TransferListener {
         return txManager.addUploadTask(account, repoID, repoName, dir, filePath, isUpdate);
     }
 
+    public int addUploadTask(Account account, String repoID, String repoName, String dir,
+                              String filePath, boolean isUpdate, Priority priority) {
+        return txManager.addUploadTask(account, repoID, repoName, dir, filePath, isUpdate,
+                                       priority);
+    }
+
+    public int[] addUploadTasks(Account account, String repoID, String repoName, String dir,
+                                List<String> filePaths, Priority priority) {
+        return txManager.addUploadTasks(account, repoID, repoName, dir, filePaths, priority);
+    }
+
     public int addDownloadTask(Account account,
                                String repoName,
                                String repoID,
@@ -73,6 +100,26 @@ public class TransferService extends Service implements TransferListener {
         return txManager.addDownloadTask(account, repoName, repoID, path);
     }
 
+    public void pauseTransfers() {
+        txManager.pauseTransfers();
+    }
+
+    public void resumeTransfers() {
+        txManager.resumeTransfers();
+    }
+
+    public boolean isTransfersPaused() {
+        return txManager.isTransfersPaused();
+    }
+
+    public void setMaxConcurrentUploads(int n) {
+        txManager.setMaxConcurrentUploads(n);
+    }
+
+    public void setMaxConcurrentDownloads(int n) {
+        txManager.setMaxConcurrentDownloads(n);
+    }
+
     public UploadTaskInfo getUploadTaskInfo(int taskID) {
         return txManager.getUploadTaskInfo(taskID);
     }
@@ -101,15 +148,31 @@ public class TransferService extends Service implements TransferListener {
         return txManager.getDownloadTaskInfo(taskID);
     }
 
+    /**
+     * @return the number of progress events received, merged into a pending
+     * event of the same task, and dropped because their task has ended
+     */
+    public long[] getProgressEventStats() {
+        return new long[] { progressCoalescer.getReceivedCount(),
+                            progressCoalescer.getMergedCount(),
+                            progressCoalescer.getDroppedCount() };
+    }
+
     @Override
-    public void onFileUploadProgress(int taskID) {
-        Intent localIntent = new Intent(BROADCAST_ACTION).putExtra("type", BROADCAST_FILE_UPLOAD_PROGRESS)
-            .putExtra("taskID", taskID);
+    public void onProgressBatch(String type, int[] taskIDs) {
+        Intent localIntent = new Intent(BROADCAST_ACTION).putExtra("type", type)
+            .putExtra("taskIDs", taskIDs);
         LocalBroadcastManager.getInstance(this).sendBroadcast(localIntent);
     }
 
+    @Override
+    public void onFileUploadProgress(int taskID) {
+        progressCoalescer.post(BROADCAST_FILE_UPLOAD_PROGRESS, taskID);
+    }
+
     @Override
     public void onFileUploaded(int taskID) {
+        progressCoalescer.discard(BROADCAST_FILE_UPLOAD_PROGRESS, taskID);
         Intent localIntent = new Intent(BROADCAST_ACTION).putExtra("type", BROADCAST_FILE_UPLOAD_SUCCESS)
             .putExtra("taskID", taskID);
         LocalBroadcastManager.getInstance(this).sendBroadcast(localIntent);
@@ -117,6 +180,7 @@ public class TransferService extends Service implements TransferListener {
 
     @Override
     public void onFileUploadCancelled(int taskID) {
+        progressCoalescer.discard(BROADCAST_FILE_UPLOAD_PROGRESS, taskID);
         Intent localIntent = new Intent(BROADCAST_ACTION).putExtra("type", BROADCAST_FILE_UPLOAD_CANCELLED)
             .putExtra("taskID", taskID);
         LocalBroadcastManager.getInstance(this).sendBroadcast(localIntent);
@@ -124,6 +188,7 @@ public class TransferService extends Service implements TransferListener {
 
     @Override
     public void onFileUploadFailed(int taskID) {
+        progressCoalescer.discard(BROADCAST_FILE_UPLOAD_PROGRESS, taskID);
         Intent localIntent = new Intent(BROADCAST_ACTION).putExtra("type", BROADCAST_FILE_UPLOAD_FAILED)
             .putExtra("taskID", taskID);
         LocalBroadcastManager.getInstance(this).sendBroadcast(localIntent);
@@ -131,13 +196,12 @@ public class TransferService extends Service implements TransferListener {
 
     @Override
     public void onFileDownloadProgress(int taskID) {
-        Intent localIntent = new Intent(BROADCAST_ACTION).putExtra("type", BROADCAST_FILE_DOWNLOAD_PROGRESS)
-            .putExtra("taskID", taskID);
-        LocalBroadcastManager.getInstance(this).sendBroadcast(localIntent);
+        progressCoalescer.post(BROADCAST_FILE_DOWNLOAD_PROGRESS, taskID);
     }
 
     @Override
     public void onFileDownloaded(int taskID) {
+        progressCoalescer.discard(BROADCAST_FILE_DOWNLOAD_PROGRESS, taskID);
         Intent localIntent = new Intent(BROADCAST_ACTION).putExtra("type", BROADCAST_FILE_DOWNLOAD_SUCCESS)
             .putExtra("taskID", taskID);
         LocalBroadcastManager.getInstance(this).sendBroadcast(localIntent);
@@ -145,6 +209,7 @@ public class TransferService extends Service implements TransferListener {
 
     @Override
     public void onFileDownloadFailed(int taskID) {
+        progressCoalescer.discard(BROADCAST_FILE_DOWNLOAD_PROGRESS, taskID);
         Intent localIntent = new Intent(BROADCAST_ACTION).putExtra("type", BROADCAST_FILE_DOWNLOAD_FAILED)
             .putExtra("taskID", taskID);
         LocalBroadcastManager.getInstance(this).sendBroadcast(localIntent);
@@ -0,0 +1,95 @@
+package com.seafile.seadroid2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The tasks known by {@link TransferManager}, indexed by task id and by
+ * (repo id, path), so that the lookups done for every progress broadcast and
+ * the duplicate check of a new task don't scan all the tasks.
+ *
+ * The registry may be used from any thread. There is at most one task for a
+ * (repo id, path) key at a time; {@link #putIfAbsent(Entry)} and
+ * {@link #replace(Entry, Entry)} let the caller add a task without racing
+ * with another thread adding the same file.
+ */
+class TransferTaskRegistry<T extends TransferTaskRegistry.Entry> {
+
+    interface Entry {
+        public int getTaskID();
+        public String getRepoID();
+        /** The local path of an upload, or the repo path of a download */
+        public String getPath();
+    }
+
+    private final ConcurrentHashMap<Integer, T> byID = new ConcurrentHashMap<Integer, T>();
+    private final ConcurrentHashMap<String, T> byPath = new ConcurrentHashMap<String, T>();
+
+    private static final Comparator<Entry> ID_ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            return a.getTaskID() < b.getTaskID() ? -1 : (a.getTaskID() == b.getTaskID() ? 0 : 1);
+        }
+    };
+
+    private static String makeKey(String repoID, String path) {
+        // A repo id never contains a ':'
+        return repoID + ":" + path;
+    }
+
+    public T get(int taskID) {
+        return byID.get(taskID);
+    }
+
+    public T get(String repoID, String path) {
+        return byPath.get(makeKey(repoID, path));
+    }
+
+    /**
+     * Add a task if there is no task for its (repo id, path) yet.
+     *
+     * @return the task already registered for the same file, or null if the
+     * new task was added
+     */
+    public T putIfAbsent(T task) {
+        T old = byPath.putIfAbsent(makeKey(task.getRepoID(), task.getPath()), task);
+        if (old == null) {
+            byID.put(task.getTaskID(), task);
+        }
+        return old;
+    }
+
+    /**
+     * Replace the task of a file by a new one, only if it's still the given
+     * old task.
+     */
+    public boolean replace(T old, T task) {
+        if (!byPath.replace(makeKey(task.getRepoID(), task.getPath()), old, task)) {
+            return false;
+        }
+        byID.remove(old.getTaskID(), old);
+        byID.put(task.getTaskID(), task);
+        return true;
+    }
+
+    public boolean remove(T task) {
+        byID.remove(task.getTaskID(), task);
+        return byPath.remove(makeKey(task.getRepoID(), task.getPath()), task);
+    }
+
+    public int size() {
+        return byID.size();
+    }
+
+    /**
+     * Get a snapshot of all the tasks, in the order they were created.
+     */
+    public List<T> getAll() {
+        List<T> tasks = new ArrayList<T>(byID.values());
+        Collections.sort(tasks, ID_ORDER);
+        return tasks;
+    }
+}
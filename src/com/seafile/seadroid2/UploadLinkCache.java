@@ -0,0 +1,86 @@
+package com.seafile.seadroid2;
+
+import java.util.HashMap;
+
+import com.seafile.seadroid2.account.Account;
+
+/**
+ * Remember the upload and update links given by the server, so that a batch
+ * of files uploaded to the same library costs one "upload-link" api call
+ * instead of one per file.
+ *
+ * A link is reused until {@link #LINK_TTL} ms after it was fetched. The
+ * server may still refuse it earlier, in which case the caller drops it with
+ * {@link #invalidate(String, boolean, String)} and fetches a new one.
+ */
+class UploadLinkCache {
+    /** Well below the lifetime of the access token in the link */
+    public static final long LINK_TTL = 30 * 60 * 1000;
+
+    private static HashMap<Account, UploadLinkCache> caches =
+            new HashMap<Account, UploadLinkCache>();
+
+    private static class Link {
+        final String url;
+        final long fetchTime;
+
+        Link(String url, long fetchTime) {
+            this.url = url;
+            this.fetchTime = fetchTime;
+        }
+    }
+
+    private final HashMap<String, Link> links = new HashMap<String, Link>();
+
+    private UploadLinkCache() {
+    }
+
+    /**
+     * Get the link cache of an account. All SeafConnection instances of the
+     * same account share one cache.
+     */
+    public static synchronized UploadLinkCache getCache(Account account) {
+        UploadLinkCache cache = caches.get(account);
+        if (cache == null) {
+            cache = new UploadLinkCache();
+            caches.put(account, cache);
+        }
+        return cache;
+    }
+
+    private static String makeKey(String repoID, boolean update) {
+        return (update ? "update:" : "upload:") + repoID;
+    }
+
+    /**
+     * @return the cached link, or null if there is none or it's too old
+     */
+    public synchronized String get(String repoID, boolean update) {
+        String key = makeKey(repoID, update);
+        Link link = links.get(key);
+        if (link == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() - link.fetchTime > LINK_TTL) {
+            links.remove(key);
+            return null;
+        }
+        return link.url;
+    }
+
+    public synchronized void put(String repoID, boolean update, String url) {
+        links.put(makeKey(repoID, update), new Link(url, System.currentTimeMillis()));
+    }
+
+    /**
+     * Drop a link refused by the server. Nothing is done if another link has
+     * been cached in the meantime.
+     */
+    public synchronized void invalidate(String repoID, boolean update, String url) {
+        String key = makeKey(repoID, update);
+        Link link = links.get(key);
+        if (link != null && link.url.equals(url)) {
+            links.remove(key);
+        }
+    }
+}
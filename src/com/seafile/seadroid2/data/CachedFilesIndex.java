@@ -0,0 +1,73 @@
+package com.seafile.seadroid2.data;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * What is known locally about the files of a directory: the cached file ids
+ * from the database and the lengths of the local files, so that the rows of
+ * a directory listing can be bound without any disk access.
+ *
+ * The index is built in the background by
+ * {@link DataManager#getCachedFilesIndex(String, String, String)}, then only
+ * used from the main thread.
+ */
+public class CachedFilesIndex {
+    private final String repoID;
+    private final String dir;
+    private final File localDir;
+    private final Map<String, String> cachedFileIDs;
+    private final HashMap<String, Long> localFiles = new HashMap<String, Long>();
+
+    CachedFilesIndex(String repoID, String dir, File localDir, Map<String, String> cachedFileIDs) {
+        this.repoID = repoID;
+        this.dir = dir;
+        this.localDir = localDir;
+        this.cachedFileIDs = cachedFileIDs;
+
+        File[] files = localDir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (f.isFile()) {
+                    localFiles.put(f.getName(), f.length());
+                }
+            }
+        }
+    }
+
+    public boolean isFor(String repoID, String dir) {
+        return this.repoID.equals(repoID) && this.dir.equals(dir);
+    }
+
+    /**
+     * @return the file in the local repo directory, which may not exist
+     */
+    public File getLocalFile(String name) {
+        return new File(localDir, name);
+    }
+
+    /**
+     * @return the length of the local file, or -1 if there is no local file
+     */
+    public long getLocalFileLength(String name) {
+        Long length = localFiles.get(name);
+        return length != null ? length : -1;
+    }
+
+    /**
+     * @return the id of the cached version of the file, or null if the file
+     * is not cached
+     */
+    public String getCachedFileID(String name) {
+        return cachedFileIDs.get(name);
+    }
+
+    /**
+     * Forget a file whose cache has just been removed.
+     */
+    public void removeCachedFile(String name) {
+        cachedFileIDs.remove(name);
+        localFiles.remove(name);
+    }
+}
@@ -0,0 +1,56 @@
+package com.seafile.seadroid2.data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Load the cached files of an account one page at a time, in the order they
+ * were cached, so that a list of them can be shown before they are all read
+ * and grows as the user scrolls.
+ *
+ * Each page is one query continuing after the id of the last loaded item, so
+ * rows removed meanwhile don't shift the pages. A file cached again keeps the
+ * id of its row, see {@link DatabaseHelper#saveFileCacheItem(SeafCachedFile)},
+ * so it is never loaded twice; a file cached for the first time meanwhile is
+ * at the end, and loaded with the last page. The local file of an item is
+ * only resolved when the item is shown.
+ *
+ * {@link #loadNextPage()} queries the database and must not be called on the
+ * main thread.
+ */
+public class CachedFilesPager {
+    public static final int PAGE_SIZE = 100;
+
+    private final DataManager dataManager;
+    private int lastID = 0;
+    private boolean done = false;
+
+    CachedFilesPager(DataManager dataManager) {
+        this.dataManager = dataManager;
+    }
+
+    /**
+     * @return the next page of cached files, empty once all have been loaded
+     */
+    public synchronized List<SeafCachedFile> loadNextPage() {
+        if (done) {
+            return new ArrayList<SeafCachedFile>();
+        }
+
+        List<SeafCachedFile> page = dataManager.getCachedFiles(lastID, PAGE_SIZE);
+        if (page.size() < PAGE_SIZE) {
+            done = true;
+        }
+        if (!page.isEmpty()) {
+            lastID = page.get(page.size() - 1).id;
+        }
+        return page;
+    }
+
+    /**
+     * @return false once the last page has been loaded
+     */
+    public synchronized boolean hasMore() {
+        return !done;
+    }
+}
@@ -1,12 +1,18 @@
 package com.seafile.seadroid2.data;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -95,82 +101,248 @@ public class DataManager {
         return new File(p);
     }
 
-    static public File getTempFile(String path, String oid) {
-        String p = getExternalTempDirectory() + "/" + constructFileName(path, oid);
-        return new File(p);
+    /**
+     * The name of the temp files of a file: a hash of the account, the repo
+     * and the full path, so that two files with the same name never share
+     * their temp files.
+     */
+    static private String getTempFilePrefix(Account account, String repoID, String path) {
+        String key = account.server + "\0" + account.email + "\0" + repoID + "\0" + path;
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            byte[] digest = md.digest(key.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder(digest.length * 2 + 1);
+            for (byte b : digest) {
+                sb.append(String.format("%02x", b & 0xff));
+            }
+            return sb.append('-').toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
     }
 
-    static public File getThumbFile(String oid) {
-        String p = Utils.pathJoin(getThumbDirectory(), oid + ".png");
+    /**
+     * The temp file a version of a file is downloaded into, named after the
+     * file and the file id.
+     */
+    static public File getTempFile(Account account, String repoID, String path, String oid) {
+        String p = getExternalTempDirectory() + "/" + getTempFilePrefix(account, repoID, path) + oid;
         return new File(p);
     }
 
+    /**
+     * Delete the partial downloads of the other versions of a file, i.e. its
+     * temp files with a different file id.
+     */
+    static public void removeStaleTempFiles(Account account, String repoID, String path,
+                                            String oid) {
+        String prefix = getTempFilePrefix(account, repoID, path);
+        String current = prefix + oid;
+
+        File[] files = new File(getExternalTempDirectory()).listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File f : files) {
+            String name = f.getName();
+            if (name.startsWith(prefix) && !name.equals(current)) {
+                Log.d(DEBUG_TAG, "remove stale partial download " + name);
+                f.delete();
+            }
+        }
+    }
+
+    /**
+     * The key in the {@link ThumbnailStore} of a thumbnail made by the
+     * server at a given size
+     */
+    static private String getServerThumbKey(String oid, int size) {
+        return oid + "-" + size;
+    }
+
     // Obtain a cache file for storing a directory with oid
     static public File getFileForDirentsCache(String oid) {
         return new File(getExternalCacheDirectory() + "/" + oid);
     }
 
-    static public final int MAX_GEN_CACHE_THUMB = 1000000;  // Only generate thumb cache for files less than 1MB
-    static public final int MAX_DIRECT_SHOW_THUMB = 100000;  // directly show thumb
+    static public final int THUMBNAIL_SIZE = 72;
 
-    public void calculateThumbnail(String repoName, String repoID, String path, String oid) {
-        try {
-            final int THUMBNAIL_SIZE = 72;
-
-            File file = getLocalRepoFile(repoName, repoID, path);
-            if (!file.exists())
-                return;
-            if (file.length() > MAX_GEN_CACHE_THUMB)
-                return;
+    /** The buffer BitmapFactory decodes with, one per decoding thread */
+    private static final ThreadLocal<byte[]> decodeBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[16 * 1024];
+        }
+    };
 
-            Bitmap imageBitmap = BitmapFactory.decodeStream(new FileInputStream(file));
-            imageBitmap = Bitmap.createScaledBitmap(imageBitmap, THUMBNAIL_SIZE,
-                    THUMBNAIL_SIZE, false);
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            imageBitmap.compress(Bitmap.CompressFormat.PNG, 100, baos);
-            byte[] byteArray = baos.toByteArray();
-            File thumb = getThumbFile(oid);
-            FileOutputStream out = new FileOutputStream(thumb);
-            out.write(byteArray);
-            out.close();
-        } catch (Exception ex) {
+    /**
+     * Decode an image just large enough to be scaled down to a thumbnail.
+     * The size of the image is read first, then it's decoded with the
+     * largest power of two subsampling which keeps both sides at least
+     * {@link #THUMBNAIL_SIZE}, so a photo of any size takes little memory.
+     *
+     * @return null if the image can't be decoded
+     */
+    private static Bitmap decodeForThumbnail(File file) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        options.inTempStorage = decodeBuffer.get();
+        BitmapFactory.decodeFile(file.getPath(), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
 
+        int sampleSize = 1;
+        while (options.outWidth / (sampleSize * 2) >= THUMBNAIL_SIZE
+               && options.outHeight / (sampleSize * 2) >= THUMBNAIL_SIZE) {
+            sampleSize *= 2;
         }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        return BitmapFactory.decodeFile(file.getPath(), options);
     }
 
     /**
-     * Caculate the thumbnail of an image directly when its size is less that
-     * {@link #MAX_DIRECT_SHOW_THUMB}
+     * Calculate the thumbnail of an image and save it in the thumbnail store.
+     *
+     * @return the thumbnail, or null if the image can't be decoded
      */
-    public Bitmap getThumbnail(File file) {
+    public Bitmap calculateThumbnail(File file, String oid) {
         try {
-            final int THUMBNAIL_SIZE = 72;
-
             if (!file.exists())
                 return null;
 
-            Bitmap imageBitmap = BitmapFactory.decodeStream(new FileInputStream(file));
-            imageBitmap = Bitmap.createScaledBitmap(imageBitmap, THUMBNAIL_SIZE,
+            Bitmap decoded = decodeForThumbnail(file);
+            if (decoded == null)
+                return null;
+            Bitmap imageBitmap = Bitmap.createScaledBitmap(decoded, THUMBNAIL_SIZE,
                     THUMBNAIL_SIZE, false);
+            if (imageBitmap != decoded) {
+                decoded.recycle();
+            }
+            ThumbnailStore.getStore().put(oid, imageBitmap);
             return imageBitmap;
         } catch (Exception ex) {
             return null;
         }
     }
 
+    /**
+     * Get the thumbnail of an image from the thumbnail store, or calculate
+     * it from the local file if it's not there yet.
+     *
+     * @return null if there is no thumbnail
+     */
+    public Bitmap loadThumbnail(File file, String oid) {
+        Bitmap bitmap = ThumbnailStore.getStore().getBitmap(oid);
+        if (bitmap != null) {
+            return bitmap;
+        }
+        return calculateThumbnail(file, oid);
+    }
+
+
+    /** How long a thumbnail the server failed to make is not asked again */
+    static private final long FAILED_THUMB_TTL = 10 * 60 * 1000;
+    static private final int MAX_FAILED_THUMBS = 512;
+
+    // The keys of the server thumbnails which failed recently, with the time
+    // of the failure, the oldest first
+    static private final LinkedHashMap<String, Long> failedThumbs =
+            new LinkedHashMap<String, Long>();
+
+    static private boolean hasThumbnailFailed(String key) {
+        synchronized (failedThumbs) {
+            Long time = failedThumbs.get(key);
+            if (time == null) {
+                return false;
+            }
+            if (System.currentTimeMillis() - time >= FAILED_THUMB_TTL) {
+                failedThumbs.remove(key);
+                return false;
+            }
+            return true;
+        }
+    }
+
+    static private void onThumbnailFailed(String key) {
+        synchronized (failedThumbs) {
+            failedThumbs.remove(key);
+            failedThumbs.put(key, System.currentTimeMillis());
+            Iterator<String> iter = failedThumbs.keySet().iterator();
+            while (failedThumbs.size() > MAX_FAILED_THUMBS && iter.hasNext()) {
+                iter.next();
+                iter.remove();
+            }
+        }
+    }
+
+    /**
+     * Get the thumbnail of an image which is not downloaded, from the
+     * thumbnail store or else from the server. A thumbnail the server failed
+     * to make is not asked again for {@link #FAILED_THUMB_TTL} ms, so that
+     * scrolling over it doesn't send a request each time.
+     *
+     * @param size the size in pixels of the thumbnail
+     * @return null if there is no thumbnail
+     */
+    public Bitmap getServerThumbnail(String repoID, String path, String oid, int size) {
+        ThumbnailStore store = ThumbnailStore.getStore();
+        String key = getServerThumbKey(oid, size);
+        Bitmap bitmap = store.getBitmap(key);
+        if (bitmap != null) {
+            return bitmap;
+        }
+
+        if (!Utils.isNetworkOn() || hasThumbnailFailed(key)) {
+            return null;
+        }
+
+        byte[] data;
+        try {
+            data = sc.getThumbnail(repoID, path, size);
+        } catch (SeafException e) {
+            // e.g. an encrypted repo, or a server without thumbnail support
+            Log.d(DEBUG_TAG, "failed to get thumbnail of " + path + ": " + e.getMessage());
+            onThumbnailFailed(key);
+            return null;
+        }
+
+        bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
+        if (bitmap == null) {
+            onThumbnailFailed(key);
+            return null;
+        }
+
+        // Kept as encoded by the server
+        store.put(key, data);
+        return bitmap;
+    }
+
 
     private static final String DEBUG_TAG = "DataManager";
 
     private SeafConnection sc;
     private Account account;
     private DatabaseHelper dbHelper;
+    private DirentsMemoryCache direntsCache;
+    private RepoDirCache repoDirs;
 
     List<SeafRepo> reposCache = null;
+    // The json reposCache was parsed from, and its ETag
+    private String reposJson = null;
+    private String reposETag = null;
 
     public DataManager(Account act) {
         account = act;
         sc = new SeafConnection(act);
         dbHelper = DatabaseHelper.getDatabaseHelper();
+        direntsCache = DirentsMemoryCache.getCache(act);
+        repoDirs = RepoDirCache.getCache(act);
     }
 
     public Account getAccount() {
@@ -183,6 +355,12 @@ public class DataManager {
                 filename);
     }
 
+    private File getFileForReposETag() {
+        String filename = "repos-" + (account.server + account.email).hashCode() + ".etag";
+        return new File(getExternalCacheDirectory() + "/" +
+                filename);
+    }
+
     /**
      * The directory structure of Seafile on external storage is like this:
      *
@@ -225,24 +403,38 @@ public class DataManager {
     /**
      * Get the top dir of a repo. If there are multiple repos with same name,
      * say "ABC", their top dir would be "ABC", "ABC (1)", "ABC (2)", etc. The
-     * mapping (repoName, repoID, dir) is stored in a database table.
+     * mapping (repoName, repoID, dir) is stored in a database table, and kept
+     * in memory by {@link RepoDirCache}.
      */
     private String getRepoDir(String repoName, String repoID) {
         File repoDir;
 
         // Check if there is a record in databse
-        String path = dbHelper.getRepoDir(account, repoName, repoID);
+        String path = repoDirs.get(repoName, repoID);
         if (path != null) {
             // Has record in databse
             repoDir = new File(path);
-            if (!repoDir.exists()) {
-                if (repoDir.mkdirs() == false) {
-                    throw new RuntimeException("Could not create library directory " + path);
-                }
+            if (!repoDirs.makeDir(repoDir, false)) {
+                throw new RuntimeException("Could not create library directory " + path);
             }
             return path;
         }
 
+        // Only one caller at a time picks a new dir, so that two repos with
+        // the same name can't get the same one
+        synchronized (repoDirs) {
+            path = repoDirs.get(repoName, repoID);
+            if (path != null) {
+                return path;
+            }
+            return createRepoDir(repoName, repoID);
+        }
+    }
+
+    private String createRepoDir(String repoName, String repoID) {
+        File repoDir;
+        String path;
+
         int i = 0;
         while (true) {
             String uniqueRepoName;
@@ -267,6 +459,8 @@ public class DataManager {
 
         // Save the new mapping in database
         dbHelper.saveRepoDirMapping(account, repoName, repoID, path);
+        repoDirs.put(repoName, repoID, path);
+        repoDirs.makeDir(repoDir, false);
 
         return repoDir.getPath();
     }
@@ -281,13 +475,19 @@ public class DataManager {
     public File getLocalRepoFile(String repoName, String repoID, String path) {
         String localPath = Utils.pathJoin(getRepoDir(repoName, repoID), path);
         File parentDir = new File(Utils.getParentPath(localPath));
-        if (!parentDir.exists()) {
-            parentDir.mkdirs();
-        }
+        repoDirs.makeDir(parentDir, false);
 
         return new File(localPath);
     }
 
+    /**
+     * Make sure the directory of a local file still exists before writing
+     * the file, even if it was created earlier.
+     */
+    private void makeParentDir(File file) {
+        repoDirs.makeDir(file.getParentFile(), true);
+    }
+
     private List<SeafRepo> parseRepos(String json) {
         try {
             // may throw ClassCastException
@@ -342,34 +542,77 @@ public class DataManager {
         if (cache.exists()) {
             String json = Utils.readFile(cache);
             reposCache = parseRepos(json);
+            if (reposCache != null) {
+                reposJson = json;
+                File etag = getFileForReposETag();
+                reposETag = etag.exists() ? Utils.readFile(etag) : null;
+            }
             return reposCache;
         }
         return null;
     }
 
+    /**
+     * Get the repos from the server. The request is conditional on the ETag
+     * of the cached repos, so an unchanged list is neither downloaded nor
+     * parsed nor written again if the server supports ETags; otherwise it is
+     * only downloaded.
+     */
     public List<SeafRepo> getReposFromServer() throws SeafException {
         // First decide if use cache
         if (!Utils.isNetworkOn()) {
             throw SeafException.networkException;
         }
 
+        getReposFromCache();
+
         // Log.d(DEBUG_TAG, "get repos from server");
-        String json = sc.getRepos();
-        if (json == null)
-            return null;
+        Pair<String, String> ret = sc.getRepos(reposJson != null ? reposETag : null);
+        String json = ret.second;
+        if (json == null) {
+            // not modified
+            return reposCache;
+        }
+
+        if (json.equals(reposJson)) {
+            // The server has no ETag, or a new one for the same list
+            if (ret.first != null && !ret.first.equals(reposETag)) {
+                saveReposETag(ret.first);
+            }
+            return reposCache;
+        }
 
         reposCache = parseRepos(json);
+        reposJson = reposCache != null ? json : null;
 
+        String etag = reposCache != null ? ret.first : null;
         try {
             File cache = getFileForReposCache();
             Utils.writeFile(cache, json);
         } catch (IOException e) {
-            // ignore
+            // ignore, but don't tag the old file with the new ETag
+            etag = null;
         }
+        saveReposETag(etag);
 
         return reposCache;
     }
 
+    private void saveReposETag(String etag) {
+        reposETag = etag;
+        File file = getFileForReposETag();
+        if (etag == null) {
+            file.delete();
+            return;
+        }
+
+        try {
+            Utils.writeFile(file, etag);
+        } catch (IOException e) {
+            file.delete();
+        }
+    }
+
     public interface ProgressMonitor {
         public void onProgressNotify(long total);
         boolean isCancelled();
@@ -388,11 +631,13 @@ public class DataManager {
             }
         }
 
+        makeParentDir(localFile);
         Pair<String, File> ret = sc.getFile(repoID, path, localFile.getPath(), cachedFileID, monitor);
 
         String fileID = ret.first;
         if (fileID.equals(cachedFileID)) {
             // cache is valid
+            dbHelper.touchFileCacheItem(repoID, path, System.currentTimeMillis());
             return localFile;
         } else {
             File file = ret.second;
@@ -402,37 +647,114 @@ public class DataManager {
     }
 
     private List<SeafDirent> parseDirents(String json) {
-        try {
-            JSONArray array = Utils.parseJsonArray(json);
-            if (array == null)
-                return null;
+        return DirentsParser.parse(json);
+    }
 
-            ArrayList<SeafDirent> dirents = new ArrayList<SeafDirent>();
-            for (int i = 0; i < array.length(); i++) {
-                JSONObject obj = array.getJSONObject(i);
-                SeafDirent de = SeafDirent.fromJson(obj);
-                if (de != null)
-                    dirents.add(de);
-            }
-            return dirents;
-        } catch (JSONException e) {
-            return null;
+    private void saveDirents(String repoID, String path, String dirID,
+                             List<SeafDirent> dirents) {
+        direntsCache.invalidate(repoID, path);
+        dbHelper.saveDirents(repoID, path, dirID, DirentsCodec.encode(dirents));
+        direntsCache.put(repoID, path, dirID, dirents);
+    }
+
+    /**
+     * Like {@link #saveDirents(String, String, String, List)} for several
+     * directories, written in a single transaction.
+     *
+     * @param dirs the (repo id, path) of the directories
+     * @param updates the (dir id, dirents) of each directory
+     */
+    private void saveDirents(List<Pair<String, String>> dirs,
+                             List<Pair<String, List<SeafDirent>>> updates) {
+        if (dirs.isEmpty()) {
+            return;
+        }
+
+        List<DatabaseHelper.DirentsRecord> records =
+                new ArrayList<DatabaseHelper.DirentsRecord>(dirs.size());
+        for (int i = 0; i < dirs.size(); i++) {
+            Pair<String, String> dir = dirs.get(i);
+            Pair<String, List<SeafDirent>> update = updates.get(i);
+            direntsCache.invalidate(dir.first, dir.second);
+            records.add(new DatabaseHelper.DirentsRecord(dir.first, dir.second, update.first,
+                                                         DirentsCodec.encode(update.second)));
+        }
+        dbHelper.saveDirents(records);
+
+        for (int i = 0; i < dirs.size(); i++) {
+            Pair<String, String> dir = dirs.get(i);
+            Pair<String, List<SeafDirent>> update = updates.get(i);
+            direntsCache.put(dir.first, dir.second, update.first, update.second);
         }
     }
 
-    public List<SeafDirent> getCachedDirents(String repoID, String path) {
-        String json = null;
-        Pair<String, String> ret = dbHelper.getCachedDirents(repoID, path);
+    /**
+     * Get the cached dirents of a directory with their dir id, from memory if
+     * possible, otherwise from the database.
+     *
+     * @return null if the directory is not cached
+     */
+    private DirentsMemoryCache.Entry getCachedDirentsEntry(String repoID, String path) {
+        DirentsMemoryCache.Entry entry = direntsCache.get(repoID, path);
+        if (entry != null) {
+            return entry;
+        }
+
+        Pair<String, byte[]> ret = dbHelper.getCachedDirents(repoID, path);
         if (ret == null) {
             return null;
         }
 
-        json = ret.second;
-        if (json == null) {
+        // null if the cache was written by another version of the codec
+        List<SeafDirent> dirents = DirentsCodec.decode(ret.second);
+        if (dirents == null) {
             return null;
         }
 
-        return parseDirents(json);
+        return direntsCache.put(repoID, path, ret.first, dirents);
+    }
+
+    /**
+     * The returned list is shared with the other callers and must not be
+     * modified.
+     */
+    public List<SeafDirent> getCachedDirents(String repoID, String path) {
+        DirentsMemoryCache.Entry entry = getCachedDirentsEntry(repoID, path);
+        return entry != null ? entry.dirents : null;
+    }
+
+    /**
+     * Whether the dirents of a directory are cached, without decoding them
+     * or counting the lookup in the memory cache statistics.
+     */
+    boolean hasCachedDirents(String repoID, String path) {
+        return direntsCache.contains(repoID, path)
+            || dbHelper.getCachedDirID(repoID, path) != null;
+    }
+
+    /** The number of dirents lookups of this account served from memory */
+    public long getDirentsCacheHitCount() {
+        return direntsCache.getHitCount();
+    }
+
+    /** The number of dirents lookups which had to go to the database */
+    public long getDirentsCacheMissCount() {
+        return direntsCache.getMissCount();
+    }
+
+    /**
+     * The number of bytes of dirents listings received from the server by
+     * this DataManager
+     */
+    public long getReceivedDirentsBytes() {
+        return sc.getReceivedDirentsBytes();
+    }
+
+    /**
+     * @see SeafConnection#setBackground(boolean)
+     */
+    public void setBackground(boolean background) {
+        sc.setBackground(background);
     }
 
     /**
@@ -444,28 +766,157 @@ public class DataManager {
      * In the second case, the local cache may still be valid.
      */
     public List<SeafDirent> getDirentsFromServer(String repoID, String path) throws SeafException {
-        Pair<String, String> cache = dbHelper.getCachedDirents(repoID, path);
-        String cachedDirID = null;
-        if (cache != null) {
-            cachedDirID = cache.first;
-        }
-        Pair<String, String> ret = sc.getDirents(repoID, path, cachedDirID);
+        DirentsMemoryCache.Entry cache = getCachedDirentsEntry(repoID, path);
+        String cachedDirID = cache != null ? cache.dirID : null;
+        Pair<String, List<SeafDirent>> ret = sc.getDirents(repoID, path, cachedDirID);
         if (ret == null) {
             return null;
         }
 
         String dirID = ret.first;
-        String content;
 
         if (cache != null && dirID.equals(cachedDirID)) {
             // local cache still valid
-            content = cache.second;
-        } else {
-            content = ret.second;
-            dbHelper.saveDirents(repoID, path, dirID, content);
+            return cache.dirents;
         }
 
-        return parseDirents(content);
+        List<SeafDirent> dirents = ret.second;
+        saveDirents(repoID, path, dirID, dirents);
+        return dirents;
+    }
+
+    /**
+     * The number of requests in flight for
+     * {@link #revalidateDirents(List, Executor)}
+     */
+    static public final int REVALIDATE_CONCURRENCY = 2;
+
+    /**
+     * Revalidate the cached dirents of many directories in one batch. Each
+     * directory costs one conditional request carrying its cached dir id, so
+     * an unchanged directory is neither downloaded nor written again. The
+     * requests are sent {@link #REVALIDATE_CONCURRENCY} at a time over the
+     * kept alive connections of the account.
+     *
+     * The calling thread sends the requests itself, helped by tasks run on
+     * the given executor, e.g. the background pool of the caller. A helper
+     * which has not started when the caller is done leaves its share to the
+     * caller, so the executor may be the one running the caller, and may
+     * drop or reject the helpers.
+     *
+     * Directories without cached dirents are skipped, and a directory whose
+     * request fails keeps its cached dirents.
+     *
+     * @param dirs the (repo id, path) of the directories
+     * @return the directories whose dirents have changed, and have been
+     * updated in the cache
+     */
+    public List<Pair<String, String>> revalidateDirents(List<Pair<String, String>> dirs,
+                                                        Executor executor) {
+        List<Pair<String, String>> changed = new ArrayList<Pair<String, String>>();
+        if (dirs.isEmpty()) {
+            return changed;
+        }
+
+        RevalidateBatch batch = new RevalidateBatch(dirs);
+        int helpers = Math.min(REVALIDATE_CONCURRENCY, dirs.size()) - 1;
+        try {
+            for (int i = 0; i < helpers; i++) {
+                executor.execute(batch);
+            }
+        } catch (RejectedExecutionException e) {
+            // e.g. the executor has been shut down, do it all ourselves
+        }
+        batch.run();
+
+        try {
+            batch.await();
+        } catch (InterruptedException e) {
+            // Nothing has been written
+            Thread.currentThread().interrupt();
+            return changed;
+        }
+
+        List<Pair<String, List<SeafDirent>>> updates =
+                new ArrayList<Pair<String, List<SeafDirent>>>();
+        for (int i = 0; i < dirs.size(); i++) {
+            Pair<String, List<SeafDirent>> update = batch.results.get(i);
+            if (update != null) {
+                changed.add(dirs.get(i));
+                updates.add(update);
+            }
+        }
+
+        // All the changed directories are written in one transaction
+        saveDirents(changed, updates);
+        return changed;
+    }
+
+    /**
+     * The directories of a revalidation, taken one at a time by the threads
+     * running the batch.
+     */
+    private class RevalidateBatch implements Runnable {
+        final List<Pair<String, String>> dirs;
+        // The new dir id and dirents of each directory, null if unchanged
+        final List<Pair<String, List<SeafDirent>>> results;
+        private final AtomicInteger next = new AtomicInteger();
+        private int done = 0;
+
+        RevalidateBatch(List<Pair<String, String>> dirs) {
+            this.dirs = dirs;
+            results = new ArrayList<Pair<String, List<SeafDirent>>>(dirs.size());
+            for (int i = 0; i < dirs.size(); i++) {
+                results.add(null);
+            }
+        }
+
+        @Override
+        public void run() {
+            int i;
+            while ((i = next.getAndIncrement()) < dirs.size()) {
+                Pair<String, String> dir = dirs.get(i);
+                Pair<String, List<SeafDirent>> update = null;
+                try {
+                    update = revalidateDirents(dir.first, dir.second);
+                } catch (SeafException e) {
+                    Log.d(DEBUG_TAG, "failed to revalidate " + dir.second + ": " + e.getMessage());
+                } finally {
+                    synchronized (this) {
+                        results.set(i, update);
+                        done++;
+                        notifyAll();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Wait for the directories taken by the other threads.
+         */
+        synchronized void await() throws InterruptedException {
+            while (done < dirs.size()) {
+                wait();
+            }
+        }
+    }
+
+    /**
+     * @return the new (dir id, dirents) if the cached dirents have changed,
+     * otherwise null
+     */
+    private Pair<String, List<SeafDirent>> revalidateDirents(String repoID, String path)
+            throws SeafException {
+        DirentsMemoryCache.Entry cache = getCachedDirentsEntry(repoID, path);
+        if (cache == null) {
+            return null;
+        }
+
+        Pair<String, List<SeafDirent>> ret = sc.getDirents(repoID, path, cache.dirID);
+        if (ret == null || ret.first.equals(cache.dirID)) {
+            return null;
+        }
+        return ret;
     }
 
     public SeafCachedFile getCachedFile(String repoName, String repoID, String path) {
@@ -473,8 +924,26 @@ public class DataManager {
         return cf;
     }
 
-    public List<SeafCachedFile> getCachedFiles() {
-        return dbHelper.getFileCacheItems(this);
+    /**
+     * Get the cached files of the account page by page, e.g. as the user
+     * scrolls down a list of them.
+     */
+    public CachedFilesPager getCachedFilesPager() {
+        return new CachedFilesPager(this);
+    }
+
+    List<SeafCachedFile> getCachedFiles(int afterID, int limit) {
+        return dbHelper.getFileCacheItems(this, afterID, limit);
+    }
+
+    /**
+     * Load what is known locally about the files of a directory, in one
+     * query and one directory listing. Must not be called on the main thread.
+     */
+    public CachedFilesIndex getCachedFilesIndex(String repoName, String repoID, String dir) {
+        File localDir = new File(Utils.pathJoin(getRepoDir(repoName, repoID), dir));
+        Map<String, String> ids = dbHelper.getCachedFileIDs(account, repoID, dir);
+        return new CachedFilesIndex(repoID, dir, localDir, ids);
     }
 
     public void addCachedFile(String repoName, String repoID, String path, String fileID, File file) {
@@ -484,11 +953,22 @@ public class DataManager {
         item.path = path;
         item.fileID = fileID;
         item.accountSignature = account.getSignature();
-        dbHelper.saveFileCacheItem(item, this);
+        item.size = file.length();
+        item.mtime = file.lastModified();
+        item.atime = System.currentTimeMillis();
+        dbHelper.saveFileCacheItem(item);
+        FileCacheManager.getManager(account).onFileCached(item.size);
+    }
+
+    /**
+     * Enforce the quota of cached files of the account in the background.
+     */
+    public void trimCachedFiles() {
+        FileCacheManager.getManager(account).trim();
     }
 
     public void removeCachedFile(SeafCachedFile cf) {
-        cf.file.delete();
+        cf.getFile().delete();
         dbHelper.deleteFileCacheItem(cf);
     }
 
@@ -506,12 +986,17 @@ public class DataManager {
         uploadFileCommon(repoName, repoID, dir, filePath, monitor, true);
     }
 
+    /** New files larger than this are uploaded in chunks of this size */
+    static public final long UPLOAD_CHUNK_SIZE = 4 * 1024 * 1024;
+
     private void uploadFileCommon(String repoName, String repoID, String dir,
                                   String filePath, ProgressMonitor monitor,
                                   boolean isUpdate) throws SeafException {
         String newFileID = null;
         if (isUpdate) {
             newFileID  = sc.updateFile(repoID, dir, filePath, monitor);
+        } else if (new File(filePath).length() > UPLOAD_CHUNK_SIZE) {
+            newFileID = uploadFileChunked(repoID, dir, filePath, monitor);
         } else {
             newFileID  = sc.uploadFile(repoID, dir, filePath, monitor);
         }
@@ -526,6 +1011,7 @@ public class DataManager {
 
         if (!isUpdate) {
             // Copy the uploaded file to local repo cache
+            makeParentDir(fileInRepo);
             try {
                 Utils.copyFile(srcFile, fileInRepo);
             } catch (IOException e) {
@@ -537,6 +1023,60 @@ public class DataManager {
         addCachedFile(repoName, repoID, path, newFileID, fileInRepo);
     }
 
+    /**
+     * Upload a large new file in chunks. The number of bytes acknowledged by
+     * the server is saved after each chunk, so that an upload interrupted by a
+     * network failure or by the death of the process resumes from the last
+     * acknowledged chunk instead of from the beginning.
+     *
+     * If the server has already received the whole file, the reply to the
+     * last chunk has been lost. Only the last chunk is sent again, so that
+     * the server completes the file and replies with its id.
+     *
+     * Falls back to a single request if the server does not support
+     * resumable upload.
+     */
+    private String uploadFileChunked(final String repoID, final String dir,
+                                     final String filePath,
+                                     ProgressMonitor monitor) throws SeafException {
+        File file = new File(filePath);
+        final long size = file.length();
+        final long mtime = file.lastModified();
+
+        // Also tells whether the server supports resumable upload at all. An
+        // old server would take the first chunk as the whole file.
+        long uploaded = sc.getUploadedBytes(repoID, dir, file.getName());
+        if (uploaded < 0) {
+            dbHelper.removeUploadedBytes(account, repoID, dir, filePath);
+            return sc.uploadFile(repoID, dir, filePath, monitor);
+        }
+
+        long offset = 0;
+        long saved = dbHelper.getUploadedBytes(account, repoID, dir, filePath, size, mtime);
+        if (saved > 0 && uploaded < size) {
+            // The server is the authority on what it has received, the
+            // saved record only tells the partial upload is of this very file
+            offset = uploaded;
+            Log.d(DEBUG_TAG, String.format("resume upload of %s from %d", filePath, offset));
+        } else if (saved > 0 && uploaded == size && size > 0) {
+            // All the chunks were acknowledged but the last reply was lost
+            offset = (size - 1) / UPLOAD_CHUNK_SIZE * UPLOAD_CHUNK_SIZE;
+            Log.d(DEBUG_TAG, String.format("resend the last chunk of %s from %d", filePath, offset));
+        }
+
+        String newFileID = sc.uploadFileChunked(repoID, dir, filePath, offset, UPLOAD_CHUNK_SIZE,
+                new SeafConnection.ChunkListener() {
+                    @Override
+                    public void onChunkUploaded(long uploadedBytes) {
+                        dbHelper.saveUploadedBytes(account, repoID, dir, filePath,
+                                                   size, mtime, uploadedBytes);
+                    }
+                }, monitor);
+
+        dbHelper.removeUploadedBytes(account, repoID, dir, filePath);
+        return newFileID;
+    }
+
     public void createNewDir(String repoID, String parentDir, String dirName) throws SeafException {
         Pair<String, String> ret = sc.createNewDir(repoID, parentDir, dirName);
         if (ret == null) {
@@ -544,11 +1084,14 @@ public class DataManager {
         }
 
         String newDirID = ret.first;
-        String response = ret.second;
+        List<SeafDirent> dirents = parseDirents(ret.second);
+        if (dirents == null) {
+            return;
+        }
 
         // The response is the dirents of the parentDir after creating
         // the new dir. We save it to avoid request it again
-        dbHelper.saveDirents(repoID, parentDir, newDirID, response);
+        saveDirents(repoID, parentDir, newDirID, dirents);
     }
 
     public void createNewFile(String repoID, String parentDir, String fileName) throws SeafException {
@@ -558,11 +1101,14 @@ public class DataManager {
         }
 
         String newDirID = ret.first;
-        String response = ret.second;
+        List<SeafDirent> dirents = parseDirents(ret.second);
+        if (dirents == null) {
+            return;
+        }
 
         // The response is the dirents of the parentDir after creating
         // the new file. We save it to avoid request it again
-        dbHelper.saveDirents(repoID, parentDir, newDirID, response);
+        saveDirents(repoID, parentDir, newDirID, dirents);
     }
 
     public File getLocalCachedFile(String repoName, String repoID, String filePath, String fileID) {
@@ -573,6 +1119,7 @@ public class DataManager {
 
         SeafCachedFile cf = getCachedFile(repoName, repoID, filePath);
         if (cf != null && fileID.equals(cf.fileID)) {
+            dbHelper.touchFileCacheItem(repoID, filePath, System.currentTimeMillis());
             return localFile;
         } else {
             return null;
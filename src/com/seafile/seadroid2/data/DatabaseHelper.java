@@ -2,13 +2,19 @@ package com.seafile.seadroid2.data;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
 import android.util.Log;
 import android.util.Pair;
 
@@ -18,7 +24,7 @@ import com.seafile.seadroid2.account.Account;
 public class DatabaseHelper extends SQLiteOpenHelper {
     private static final String DEBUG_TAG = "DatabaseHelper";
     // If you change the database schema, you must increment the database version.
-    public static final int DATABASE_VERSION = 5;
+    public static final int DATABASE_VERSION = 10;
     public static final String DATABASE_NAME = "data.db";
 
     // FileCache table
@@ -30,6 +36,9 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     private static final String FILECACHE_COLUMN_REPO_ID = "repo_id";
     private static final String FILECACHE_COLUMN_PATH = "path";
     private static final String FILECACHE_COLUMN_ACCOUNT = "account";
+    private static final String FILECACHE_COLUMN_SIZE = "size";
+    private static final String FILECACHE_COLUMN_MTIME = "mtime";
+    private static final String FILECACHE_COLUMN_ATIME = "atime";
 
     // RepoDir table
     private static final String REPODIR_TABLE_NAME = "RepoDir";
@@ -48,6 +57,37 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     private static final String DIRENTS_CACHE_COLUMN_DIR_ID = "dir_id";
     private static final String DIRENTS_CACHE_COLUMN_CONTENT = "content";
 
+    // UploadChunk table
+    private static final String UPLOAD_CHUNK_TABLE_NAME = "UploadChunk";
+
+    private static final String UPLOAD_CHUNK_COLUMN_ID = "id";
+    private static final String UPLOAD_CHUNK_COLUMN_ACCOUNT = "account";
+    private static final String UPLOAD_CHUNK_COLUMN_REPO_ID = "repo_id";
+    private static final String UPLOAD_CHUNK_COLUMN_DIR = "dir";
+    private static final String UPLOAD_CHUNK_COLUMN_LOCAL_PATH = "local_path";
+    private static final String UPLOAD_CHUNK_COLUMN_FILE_SIZE = "file_size";
+    private static final String UPLOAD_CHUNK_COLUMN_FILE_MTIME = "file_mtime";
+    private static final String UPLOAD_CHUNK_COLUMN_UPLOADED = "uploaded";
+
+    // TransferTask table
+    private static final String TRANSFER_TABLE_NAME = "TransferTask";
+
+    private static final String TRANSFER_COLUMN_ID = "id";
+    private static final String TRANSFER_COLUMN_TYPE = "type";
+    private static final String TRANSFER_COLUMN_SERVER = "server";
+    private static final String TRANSFER_COLUMN_EMAIL = "email";
+    private static final String TRANSFER_COLUMN_REPO_ID = "repo_id";
+    private static final String TRANSFER_COLUMN_REPO_NAME = "repo_name";
+    private static final String TRANSFER_COLUMN_DIR = "dir";
+    private static final String TRANSFER_COLUMN_PATH = "path";
+    private static final String TRANSFER_COLUMN_IS_UPDATE = "is_update";
+    private static final String TRANSFER_COLUMN_PRIORITY = "priority";
+    private static final String TRANSFER_COLUMN_STATE = "state";
+    private static final String TRANSFER_COLUMN_TRANSFERRED = "transferred";
+    private static final String TRANSFER_COLUMN_TOTAL = "total";
+    private static final String TRANSFER_COLUMN_ERR_CODE = "err_code";
+    private static final String TRANSFER_COLUMN_ERR_MSG = "err_msg";
+
     private static final String SQL_CREATE_FILECACHE_TABLE =
         "CREATE TABLE " + FILECACHE_TABLE_NAME + " ("
         + FILECACHE_COLUMN_ID + " INTEGER PRIMARY KEY, "
@@ -55,7 +95,10 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         + FILECACHE_COLUMN_PATH + " TEXT NOT NULL, "
         + FILECACHE_COLUMN_REPO_NAME + " TEXT NOT NULL, "
         + FILECACHE_COLUMN_REPO_ID + " TEXT NOT NULL, "
-        + FILECACHE_COLUMN_ACCOUNT + " TEXT NOT NULL);";
+        + FILECACHE_COLUMN_ACCOUNT + " TEXT NOT NULL, "
+        + FILECACHE_COLUMN_SIZE + " INTEGER NOT NULL, "
+        + FILECACHE_COLUMN_MTIME + " INTEGER NOT NULL, "
+        + FILECACHE_COLUMN_ATIME + " INTEGER NOT NULL);";
 
     private static final String SQL_CREATE_REPODIR_TABLE =
         "CREATE TABLE " + REPODIR_TABLE_NAME + " ("
@@ -71,18 +114,88 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         + DIRENTS_CACHE_COLUMN_REPO_ID + " TEXT NOT NULL, "
         + DIRENTS_CACHE_COLUMN_PATH + " TEXT NOT NULL, "
         + DIRENTS_CACHE_COLUMN_DIR_ID + " TEXT NOT NULL, "
-        + DIRENTS_CACHE_COLUMN_CONTENT + " TEXT NOT NULL);";
+        + DIRENTS_CACHE_COLUMN_CONTENT + " BLOB NOT NULL);";
+
+    private static final String SQL_CREATE_UPLOAD_CHUNK_TABLE =
+        "CREATE TABLE " + UPLOAD_CHUNK_TABLE_NAME + " ("
+        + UPLOAD_CHUNK_COLUMN_ID + " INTEGER PRIMARY KEY, "
+        + UPLOAD_CHUNK_COLUMN_ACCOUNT + " TEXT NOT NULL, "
+        + UPLOAD_CHUNK_COLUMN_REPO_ID + " TEXT NOT NULL, "
+        + UPLOAD_CHUNK_COLUMN_DIR + " TEXT NOT NULL, "
+        + UPLOAD_CHUNK_COLUMN_LOCAL_PATH + " TEXT NOT NULL, "
+        + UPLOAD_CHUNK_COLUMN_FILE_SIZE + " INTEGER NOT NULL, "
+        + UPLOAD_CHUNK_COLUMN_FILE_MTIME + " INTEGER NOT NULL, "
+        + UPLOAD_CHUNK_COLUMN_UPLOADED + " INTEGER NOT NULL);";
+
+    private static final String SQL_CREATE_TRANSFER_TABLE =
+        "CREATE TABLE " + TRANSFER_TABLE_NAME + " ("
+        + TRANSFER_COLUMN_ID + " INTEGER PRIMARY KEY, "
+        + TRANSFER_COLUMN_TYPE + " INTEGER NOT NULL, "
+        + TRANSFER_COLUMN_SERVER + " TEXT NOT NULL, "
+        + TRANSFER_COLUMN_EMAIL + " TEXT NOT NULL, "
+        + TRANSFER_COLUMN_REPO_ID + " TEXT NOT NULL, "
+        + TRANSFER_COLUMN_REPO_NAME + " TEXT NOT NULL, "
+        + TRANSFER_COLUMN_DIR + " TEXT, "
+        + TRANSFER_COLUMN_PATH + " TEXT NOT NULL, "
+        + TRANSFER_COLUMN_IS_UPDATE + " INTEGER NOT NULL, "
+        + TRANSFER_COLUMN_PRIORITY + " TEXT NOT NULL, "
+        + TRANSFER_COLUMN_STATE + " TEXT NOT NULL, "
+        + TRANSFER_COLUMN_TRANSFERRED + " INTEGER NOT NULL, "
+        + TRANSFER_COLUMN_TOTAL + " INTEGER NOT NULL, "
+        + TRANSFER_COLUMN_ERR_CODE + " INTEGER NOT NULL, "
+        + TRANSFER_COLUMN_ERR_MSG + " TEXT);";
+
+    // The selections of the hot lookups, built once
+    private static final String[] FILECACHE_PROJECTION = {
+        FILECACHE_COLUMN_ID,
+        FILECACHE_COLUMN_FILEID,
+        FILECACHE_COLUMN_REPO_NAME,
+        FILECACHE_COLUMN_REPO_ID,
+        FILECACHE_COLUMN_PATH,
+        FILECACHE_COLUMN_ACCOUNT,
+        FILECACHE_COLUMN_SIZE,
+        FILECACHE_COLUMN_MTIME,
+        FILECACHE_COLUMN_ATIME
+    };
+
+    private static final String FILECACHE_SELECT_FILE =
+        FILECACHE_COLUMN_REPO_ID + " = ? and " + FILECACHE_COLUMN_PATH + " = ?";
+
+    private static final String DIRENTS_CACHE_SELECT_DIR =
+        DIRENTS_CACHE_COLUMN_REPO_ID + " = ? and " + DIRENTS_CACHE_COLUMN_PATH + " = ?";
+
+    private static final String SQL_GET_REPO_DIR =
+        "SELECT " + REPODIR_COLUMN_REPO_DIR + " FROM " + REPODIR_TABLE_NAME
+        + " WHERE " + REPODIR_COLUMN_ACCOUNT + " = ? and " + REPODIR_COLUMN_REPO_NAME
+        + " = ? and " + REPODIR_COLUMN_REPO_ID + " = ?";
+
+    private static final String SQL_GET_DIR_ID =
+        "SELECT " + DIRENTS_CACHE_COLUMN_DIR_ID + " FROM " + DIRENTS_CACHE_TABLE_NAME
+        + " WHERE " + DIRENTS_CACHE_SELECT_DIR;
 
     // Use only single dbHelper to prevent multi-thread issue and db is closed exception
     // Reference http://stackoverflow.com/questions/2493331/what-are-the-best-practices-for-sqlite-on-android
     private static DatabaseHelper dbHelper = null;
     private SQLiteDatabase database = null;
 
-    public static DatabaseHelper getDatabaseHelper() {
+    // Compiled once. A statement can't be used by two threads at once, so
+    // each one is only used synchronized on itself.
+    private SQLiteStatement getRepoDirStatement;
+    private SQLiteStatement getDirIDStatement;
+
+    public static synchronized DatabaseHelper getDatabaseHelper() {
         if (dbHelper != null)
             return dbHelper;
-        dbHelper = new DatabaseHelper(SeadroidApplication.getAppContext());
-        dbHelper.database = dbHelper.getWritableDatabase();
+        DatabaseHelper helper = new DatabaseHelper(SeadroidApplication.getAppContext());
+        helper.database = helper.getWritableDatabase();
+        if (Build.VERSION.SDK_INT >= 11) {
+            // Lets the reads of the UI thread run while the transfer and
+            // thumbnail tasks write, instead of waiting for the write lock
+            helper.database.enableWriteAheadLogging();
+        }
+        helper.getRepoDirStatement = helper.database.compileStatement(SQL_GET_REPO_DIR);
+        helper.getDirIDStatement = helper.database.compileStatement(SQL_GET_DIR_ID);
+        dbHelper = helper;
         return dbHelper;
     }
 
@@ -95,6 +208,8 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         createFileCacheTable(db);
         createRepoDirTable(db);
         createDirentsCacheTable(db);
+        createUploadChunkTable(db);
+        db.execSQL(SQL_CREATE_TRANSFER_TABLE);
     }
 
     private void createFileCacheTable(SQLiteDatabase db) {
@@ -105,6 +220,20 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 + " (" + FILECACHE_COLUMN_REPO_ID + ");");
         db.execSQL("CREATE INDEX account_index ON " + FILECACHE_TABLE_NAME
                 + " (" + FILECACHE_COLUMN_ACCOUNT + ");");
+
+        // One row per file, found by saveFileCacheItem to update it
+        String sql;
+        sql = String.format("CREATE UNIQUE INDEX repoid_path_index ON %s (%s, %s)",
+                            FILECACHE_TABLE_NAME,
+                            FILECACHE_COLUMN_REPO_ID,
+                            FILECACHE_COLUMN_PATH);
+        db.execSQL(sql);
+        // For the eviction of the least recently used files
+        sql = String.format("CREATE INDEX account_atime_index ON %s (%s, %s)",
+                            FILECACHE_TABLE_NAME,
+                            FILECACHE_COLUMN_ACCOUNT,
+                            FILECACHE_COLUMN_ATIME);
+        db.execSQL(sql);
     }
 
     private void createRepoDirTable(SQLiteDatabase db) {
@@ -128,13 +257,26 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         db.execSQL(SQL_CREATE_DIRENTS_CACHE_TABLE);
 
         String sql;
-        sql = String.format("CREATE INDEX repo_path_index ON %s (%s, %s)",
+        sql = String.format("CREATE UNIQUE INDEX repo_path_index ON %s (%s, %s)",
                             DIRENTS_CACHE_TABLE_NAME,
                             DIRENTS_CACHE_COLUMN_REPO_ID,
                             DIRENTS_CACHE_COLUMN_PATH);
         db.execSQL(sql);
     }
 
+    private void createUploadChunkTable(SQLiteDatabase db) {
+        db.execSQL(SQL_CREATE_UPLOAD_CHUNK_TABLE);
+
+        String sql;
+        sql = String.format("CREATE UNIQUE INDEX upload_chunk_index ON %s (%s, %s, %s, %s)",
+                            UPLOAD_CHUNK_TABLE_NAME,
+                            UPLOAD_CHUNK_COLUMN_ACCOUNT,
+                            UPLOAD_CHUNK_COLUMN_REPO_ID,
+                            UPLOAD_CHUNK_COLUMN_DIR,
+                            UPLOAD_CHUNK_COLUMN_LOCAL_PATH);
+        db.execSQL(sql);
+    }
+
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
         // This database is only a cache for online data, so its upgrade policy is
@@ -150,6 +292,8 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("DROP TABLE IF EXISTS " + FILECACHE_TABLE_NAME + ";");
         db.execSQL("DROP TABLE IF EXISTS " + REPODIR_TABLE_NAME + ";");
         db.execSQL("DROP TABLE IF EXISTS " + DIRENTS_CACHE_TABLE_NAME + ";");
+        db.execSQL("DROP TABLE IF EXISTS " + UPLOAD_CHUNK_TABLE_NAME + ";");
+        db.execSQL("DROP TABLE IF EXISTS " + TRANSFER_TABLE_NAME + ";");
         onCreate(db);
     }
 
@@ -160,20 +304,10 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 
     public SeafCachedFile getFileCacheItem(String repoID,
                                            String path, DataManager dataManager) {
-        String[] projection = {
-                FILECACHE_COLUMN_ID,
-                FILECACHE_COLUMN_FILEID,
-                FILECACHE_COLUMN_REPO_NAME,
-                FILECACHE_COLUMN_REPO_ID,
-                FILECACHE_COLUMN_PATH,
-                FILECACHE_COLUMN_ACCOUNT
-        };
-
         Cursor c = database.query(
              FILECACHE_TABLE_NAME,
-             projection,
-             FILECACHE_COLUMN_REPO_ID
-             + "=? and " + FILECACHE_COLUMN_PATH + "=?",
+             FILECACHE_PROJECTION,
+             FILECACHE_SELECT_FILE,
              new String[] { repoID, path },
              null,   // don't group the rows
              null,   // don't filter by row groups
@@ -190,13 +324,27 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         return item;
     }
 
-    // XXX: Here we can use SQLite3  "INSERT OR REPLACE" for convience
-    public void saveFileCacheItem(SeafCachedFile item, DataManager dataManager) {
-        SeafCachedFile old = getFileCacheItem(item.repoID, item.path, dataManager);
-        if (old != null) {
-            deleteFileCacheItem(old);
+    /**
+     * Save the cache item of a file, in place of the row of the file if
+     * there is one. The row keeps its id, so that a file cached again is not
+     * moved to the end of the pages of {@link CachedFilesPager}.
+     */
+    public void saveFileCacheItem(SeafCachedFile item) {
+        ContentValues values = fileCacheItemToValues(item);
+        database.beginTransaction();
+        try {
+            int n = database.update(FILECACHE_TABLE_NAME, values, FILECACHE_SELECT_FILE,
+                                    new String[] { item.repoID, item.path });
+            if (n == 0) {
+                database.insert(FILECACHE_TABLE_NAME, null, values);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
         }
+    }
 
+    private ContentValues fileCacheItemToValues(SeafCachedFile item) {
         // Create a new map of values, where column names are the keys
         ContentValues values = new ContentValues();
         values.put(FILECACHE_COLUMN_FILEID, item.fileID);
@@ -204,9 +352,35 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         values.put(FILECACHE_COLUMN_REPO_ID, item.repoID);
         values.put(FILECACHE_COLUMN_PATH, item.path);
         values.put(FILECACHE_COLUMN_ACCOUNT, item.accountSignature);
+        values.put(FILECACHE_COLUMN_SIZE, item.size);
+        values.put(FILECACHE_COLUMN_MTIME, item.mtime);
+        values.put(FILECACHE_COLUMN_ATIME, item.atime);
+        return values;
+    }
+
+    /**
+     * Record that a cached file has just been used.
+     */
+    public void touchFileCacheItem(String repoID, String path, long atime) {
+        ContentValues values = new ContentValues();
+        values.put(FILECACHE_COLUMN_ATIME, atime);
+        database.update(FILECACHE_TABLE_NAME, values, FILECACHE_SELECT_FILE,
+                        new String[] { repoID, path });
+    }
 
-        // Insert the new row, returning the primary key value of the new row
-        database.insert(FILECACHE_TABLE_NAME, null, values);
+    /**
+     * Delete several file cache items in a single transaction.
+     */
+    public void deleteFileCacheItems(Collection<SeafCachedFile> items) {
+        database.beginTransaction();
+        try {
+            for (SeafCachedFile item : items) {
+                deleteFileCacheItem(item);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
     }
 
     public void deleteFileCacheItem(SeafCachedFile item) {
@@ -214,27 +388,147 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             database.delete(FILECACHE_TABLE_NAME,  FILECACHE_COLUMN_ID + "=?",
                     new String[] { String.valueOf(item.id) });
         } else
-            database.delete(FILECACHE_TABLE_NAME,  FILECACHE_COLUMN_REPO_ID + "=? and " + FILECACHE_COLUMN_PATH + "=?",
+            database.delete(FILECACHE_TABLE_NAME, FILECACHE_SELECT_FILE,
                 new String[] { item.repoID, item.path });
     }
 
-    public List<SeafCachedFile> getFileCacheItems(DataManager dataManager) {
+    /**
+     * Get a page of the cached files of the account, in the order they were
+     * cached. The local files of the items are only resolved when used.
+     *
+     * @param afterID the id of the last item of the previous page, or 0 for
+     * the first page
+     * @param limit the maximum number of items of the page
+     */
+    public List<SeafCachedFile> getFileCacheItems(DataManager dataManager,
+                                                  int afterID, int limit) {
         List<SeafCachedFile> files = new ArrayList<SeafCachedFile>();
 
+        String selectClause = FILECACHE_COLUMN_ACCOUNT + " = ? and " + FILECACHE_COLUMN_ID + " > ?";
+
+        String[] selectArgs = { dataManager.getAccount().getSignature(), String.valueOf(afterID) };
+
+        Cursor c = database.query(
+             FILECACHE_TABLE_NAME,
+             FILECACHE_PROJECTION,
+             selectClause,
+             selectArgs,
+             null,   // don't group the rows
+             null,   // don't filter by row groups
+             FILECACHE_COLUMN_ID,   // The sort order
+             String.valueOf(limit)
+        );
+
+        c.moveToFirst();
+        while (!c.isAfterLast()) {
+            SeafCachedFile item = cursorToFileCacheItem(c, dataManager);
+            files.add(item);
+            c.moveToNext();
+        }
+
+        c.close();
+        return files;
+    }
+
+    /**
+     * Get a page of the cached files of the account, the least recently used
+     * first.
+     *
+     * @param after the last item of the previous page, or null for the first
+     * page
+     * @param limit the maximum number of items of the page
+     */
+    public List<SeafCachedFile> getLeastRecentFileCacheItems(DataManager dataManager,
+                                                             SeafCachedFile after, int limit) {
+        List<SeafCachedFile> files = new ArrayList<SeafCachedFile>();
+
+        String selectClause;
+        String[] selectArgs;
+        String account = dataManager.getAccount().getSignature();
+        if (after == null) {
+            selectClause = FILECACHE_COLUMN_ACCOUNT + " = ?";
+            selectArgs = new String[] { account };
+        } else {
+            selectClause = String.format("%s = ? and (%s > ? or (%s = ? and %s > ?))",
+                                         FILECACHE_COLUMN_ACCOUNT,
+                                         FILECACHE_COLUMN_ATIME,
+                                         FILECACHE_COLUMN_ATIME,
+                                         FILECACHE_COLUMN_ID);
+            String atime = String.valueOf(after.atime);
+            selectArgs = new String[] { account, atime, atime, String.valueOf(after.id) };
+        }
+
+        Cursor c = database.query(
+             FILECACHE_TABLE_NAME,
+             FILECACHE_PROJECTION,
+             selectClause,
+             selectArgs,
+             null,   // don't group the rows
+             null,   // don't filter by row groups
+             FILECACHE_COLUMN_ATIME + ", " + FILECACHE_COLUMN_ID,   // The sort order
+             String.valueOf(limit)
+        );
+
+        c.moveToFirst();
+        while (!c.isAfterLast()) {
+            SeafCachedFile item = cursorToFileCacheItem(c, dataManager);
+            files.add(item);
+            c.moveToNext();
+        }
+
+        c.close();
+        return files;
+    }
+
+    /**
+     * @return the total size in bytes of the cached files of the account, as
+     * recorded when they were cached
+     */
+    public long getFileCacheSize(Account account) {
+        Cursor c = database.rawQuery(
+            "SELECT sum(" + FILECACHE_COLUMN_SIZE + ") FROM " + FILECACHE_TABLE_NAME
+            + " WHERE " + FILECACHE_COLUMN_ACCOUNT + " = ?",
+            new String[] { account.getSignature() });
+
+        long size = 0;
+        if (c.moveToFirst()) {
+            // 0 if there is no row
+            size = c.getLong(0);
+        }
+        c.close();
+        return size;
+    }
+
+    /**
+     * Get the file ids of the cached files directly in a directory.
+     *
+     * @return a map from the file names to the file ids
+     */
+    public Map<String, String> getCachedFileIDs(Account account, String repoID, String dir) {
+        Map<String, String> ids = new HashMap<String, String>();
+        String prefix = dir.endsWith("/") ? dir : dir + "/";
+
         String[] projection = {
-                FILECACHE_COLUMN_ID,
-                FILECACHE_COLUMN_FILEID,
-                FILECACHE_COLUMN_REPO_NAME,
-                FILECACHE_COLUMN_REPO_ID,
                 FILECACHE_COLUMN_PATH,
-                FILECACHE_COLUMN_ACCOUNT
+                FILECACHE_COLUMN_FILEID
         };
 
+        // A range on path, so that the (repo_id, path) index is used. Every
+        // path starting with the prefix sorts before prefix + U+10FFFF, the
+        // largest code point.
+        String selectClause = String.format("%s = ? and %s = ? and %s >= ? and %s < ?",
+                                            FILECACHE_COLUMN_ACCOUNT,
+                                            FILECACHE_COLUMN_REPO_ID,
+                                            FILECACHE_COLUMN_PATH,
+                                            FILECACHE_COLUMN_PATH);
+
+        String[] selectArgs = { account.getSignature(), repoID, prefix, prefix + "\uDBFF\uDFFF" };
+
         Cursor c = database.query(
              FILECACHE_TABLE_NAME,
              projection,
-             FILECACHE_COLUMN_ACCOUNT + "=?",
-             new String[] { dataManager.getAccount().getSignature() },
+             selectClause,
+             selectArgs,
              null,   // don't group the rows
              null,   // don't filter by row groups
              null    // The sort order
@@ -242,13 +536,16 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 
         c.moveToFirst();
         while (!c.isAfterLast()) {
-            SeafCachedFile item = cursorToFileCacheItem(c, dataManager);
-            files.add(item);
+            String name = c.getString(0).substring(prefix.length());
+            // Skip the files in sub directories
+            if (name.indexOf('/') == -1) {
+                ids.put(name, c.getString(1));
+            }
             c.moveToNext();
         }
 
         c.close();
-        return files;
+        return ids;
     }
 
     private SeafCachedFile cursorToFileCacheItem(Cursor cursor, DataManager dataManager) {
@@ -259,7 +556,10 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         item.repoID = cursor.getString(3);
         item.path = cursor.getString(4);
         item.accountSignature = cursor.getString(5);
-        item.file = dataManager.getLocalRepoFile(item.repoName, item.repoID, item.path);
+        item.size = cursor.getLong(6);
+        item.mtime = cursor.getLong(7);
+        item.atime = cursor.getLong(8);
+        item.dataManager = dataManager;
         return item;
     }
 
@@ -267,36 +567,50 @@ public class DatabaseHelper extends SQLiteOpenHelper {
      * Return the directory of a repo on external storage.
      */
     public String getRepoDir(Account account, String repoName, String repoID) {
+        synchronized (getRepoDirStatement) {
+            getRepoDirStatement.bindString(1, account.getSignature());
+            getRepoDirStatement.bindString(2, repoName);
+            getRepoDirStatement.bindString(3, repoID);
+            try {
+                return getRepoDirStatement.simpleQueryForString();
+            } catch (SQLiteDoneException e) {
+                // No record
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Get all the repo dir mappings of an account.
+     *
+     * @return a map from the (repo name, repo id) to the repo directories
+     */
+    public Map<Pair<String, String>, String> getRepoDirs(Account account) {
+        Map<Pair<String, String>, String> dirs = new HashMap<Pair<String, String>, String>();
+
         String[] projection = {
+            REPODIR_COLUMN_REPO_NAME,
+            REPODIR_COLUMN_REPO_ID,
             REPODIR_COLUMN_REPO_DIR
         };
 
-        String selectClause = String.format("%s = ? and %s = ? and %s = ?",
-                                            REPODIR_COLUMN_ACCOUNT,
-                                            REPODIR_COLUMN_REPO_NAME,
-                                            REPODIR_COLUMN_REPO_ID);
-
-        String[] selectArgs = { account.getSignature(), repoName, repoID };
-
-
-        Cursor cursor = database.query(
+        Cursor c = database.query(
             REPODIR_TABLE_NAME,
             projection,
-            selectClause,
-            selectArgs,
+            REPODIR_COLUMN_ACCOUNT + " = ?",
+            new String[] { account.getSignature() },
             null,   // don't group the rows
             null,   // don't filter by row groups
             null);  // The sort order
 
-        if (cursor.moveToFirst() == false) {
-            cursor.close();
-            return null;
+        c.moveToFirst();
+        while (!c.isAfterLast()) {
+            dirs.put(new Pair<String, String>(c.getString(0), c.getString(1)), c.getString(2));
+            c.moveToNext();
         }
 
-        String dir = cursor.getString(0);
-        cursor.close();
-
-        return dir;
+        c.close();
+        return dirs;
     }
 
     /**
@@ -357,28 +671,69 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         database.insert(REPODIR_TABLE_NAME, null, values);
     }
 
-    public void saveDirents(String repoID, String path, String dirID, String content) {
-        removeCachedDirents(repoID, path);
+    /**
+     * The cached dirents of a directory, as written by
+     * {@link #saveDirents(Collection)}
+     */
+    public static class DirentsRecord {
+        public String repoID;
+        public String path;
+        public String dirID;
+        /** The dirents encoded by {@link DirentsCodec} */
+        public byte[] content;
+
+        public DirentsRecord(String repoID, String path, String dirID, byte[] content) {
+            this.repoID = repoID;
+            this.path = path;
+            this.dirID = dirID;
+            this.content = content;
+        }
+    }
+
+    /**
+     * @param content The dirents encoded by {@link DirentsCodec}
+     */
+    public void saveDirents(String repoID, String path, String dirID, byte[] content) {
+        // The unique index on (repo_id, path) makes this an upsert
+        database.replace(DIRENTS_CACHE_TABLE_NAME, null,
+                         direntsToValues(repoID, path, dirID, content));
+    }
+
+    /**
+     * Save the dirents of several directories in a single transaction.
+     */
+    public void saveDirents(Collection<DirentsRecord> records) {
+        database.beginTransaction();
+        try {
+            for (DirentsRecord record : records) {
+                database.replace(DIRENTS_CACHE_TABLE_NAME, null,
+                                 direntsToValues(record.repoID, record.path,
+                                                 record.dirID, record.content));
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    private ContentValues direntsToValues(String repoID, String path, String dirID,
+                                          byte[] content) {
         // Create a new map of values, where column names are the keys
         ContentValues values = new ContentValues();
         values.put(DIRENTS_CACHE_COLUMN_REPO_ID, repoID);
         values.put(DIRENTS_CACHE_COLUMN_PATH, path);
         values.put(DIRENTS_CACHE_COLUMN_DIR_ID, dirID);
         values.put(DIRENTS_CACHE_COLUMN_CONTENT, content);
-
-        // Insert the new row, returning the primary key value of the new row
-        database.insert(DIRENTS_CACHE_TABLE_NAME, null, values);
+        return values;
     }
 
     public void removeCachedDirents(String repoID, String path) {
-        String whereClause = String.format("%s = ? and %s = ?",
-            DIRENTS_CACHE_COLUMN_REPO_ID, DIRENTS_CACHE_COLUMN_PATH);
-
-        database.delete(DIRENTS_CACHE_TABLE_NAME, whereClause, new String[] { repoID, path });
+        database.delete(DIRENTS_CACHE_TABLE_NAME, DIRENTS_CACHE_SELECT_DIR,
+                        new String[] { repoID, path });
     }
 
-    public String getDirents(String repoID, String path, String dirID) {
-        Pair<String, String> ret = getCachedDirents(repoID, path);
+    public byte[] getDirents(String repoID, String path, String dirID) {
+        Pair<String, byte[]> ret = getCachedDirents(repoID, path);
         if (ret == null) {
             return null;
         }
@@ -391,22 +746,22 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         return ret.second;
     }
 
-    public Pair<String, String> getCachedDirents(String repoID, String path) {
+    /**
+     * @return the pair (dirID, encoded dirents), or null if the dir is not
+     * cached. The dirents are only decoded by the caller if it needs them.
+     */
+    public Pair<String, byte[]> getCachedDirents(String repoID, String path) {
         String[] projection = {
             DIRENTS_CACHE_COLUMN_DIR_ID,
             DIRENTS_CACHE_COLUMN_CONTENT
         };
 
-        String selectClause = String.format("%s = ? and %s = ?",
-                                            DIRENTS_CACHE_COLUMN_REPO_ID,
-                                            DIRENTS_CACHE_COLUMN_PATH);
-
         String[] selectArgs = { repoID, path };
 
         Cursor cursor = database.query(
             DIRENTS_CACHE_TABLE_NAME,
             projection,
-            selectClause,
+            DIRENTS_CACHE_SELECT_DIR,
             selectArgs,
             null,   // don't group the rows
             null,   // don't filter by row groups
@@ -418,9 +773,229 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         }
 
         String dirID = cursor.getString(0);
-        String content = cursor.getString(1);
+        byte[] content = cursor.getBlob(1);
         cursor.close();
 
-        return new Pair<String, String>(dirID, content);
+        return new Pair<String, byte[]>(dirID, content);
+    }
+
+    /**
+     * @return the dir id of the cached dirents, without reading the dirents,
+     * or null if the dir is not cached
+     */
+    public String getCachedDirID(String repoID, String path) {
+        synchronized (getDirIDStatement) {
+            getDirIDStatement.bindString(1, repoID);
+            getDirIDStatement.bindString(2, path);
+            try {
+                return getDirIDStatement.simpleQueryForString();
+            } catch (SQLiteDoneException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Get the number of bytes acknowledged by the server for an interrupted
+     * chunked upload of a local file.
+     *
+     * @return the number of bytes, or -1 if there is no record, or the local
+     * file has changed since the record was saved
+     */
+    public long getUploadedBytes(Account account, String repoID, String dir,
+                                 String localPath, long fileSize, long fileMtime) {
+        String[] projection = {
+            UPLOAD_CHUNK_COLUMN_FILE_SIZE,
+            UPLOAD_CHUNK_COLUMN_FILE_MTIME,
+            UPLOAD_CHUNK_COLUMN_UPLOADED
+        };
+
+        String selectClause = String.format("%s = ? and %s = ? and %s = ? and %s = ?",
+                                            UPLOAD_CHUNK_COLUMN_ACCOUNT,
+                                            UPLOAD_CHUNK_COLUMN_REPO_ID,
+                                            UPLOAD_CHUNK_COLUMN_DIR,
+                                            UPLOAD_CHUNK_COLUMN_LOCAL_PATH);
+
+        String[] selectArgs = { account.getSignature(), repoID, dir, localPath };
+
+        Cursor cursor = database.query(
+            UPLOAD_CHUNK_TABLE_NAME,
+            projection,
+            selectClause,
+            selectArgs,
+            null,   // don't group the rows
+            null,   // don't filter by row groups
+            null);  // The sort order
+
+        if (cursor.moveToFirst() == false) {
+            cursor.close();
+            return -1;
+        }
+
+        long size = cursor.getLong(0);
+        long mtime = cursor.getLong(1);
+        long uploaded = cursor.getLong(2);
+        cursor.close();
+
+        if (size != fileSize || mtime != fileMtime) {
+            return -1;
+        }
+
+        return uploaded;
+    }
+
+    public void saveUploadedBytes(Account account, String repoID, String dir,
+                                  String localPath, long fileSize, long fileMtime,
+                                  long uploaded) {
+        ContentValues values = new ContentValues();
+        values.put(UPLOAD_CHUNK_COLUMN_ACCOUNT, account.getSignature());
+        values.put(UPLOAD_CHUNK_COLUMN_REPO_ID, repoID);
+        values.put(UPLOAD_CHUNK_COLUMN_DIR, dir);
+        values.put(UPLOAD_CHUNK_COLUMN_LOCAL_PATH, localPath);
+        values.put(UPLOAD_CHUNK_COLUMN_FILE_SIZE, fileSize);
+        values.put(UPLOAD_CHUNK_COLUMN_FILE_MTIME, fileMtime);
+        values.put(UPLOAD_CHUNK_COLUMN_UPLOADED, uploaded);
+
+        // The unique index on (account, repo_id, dir, local_path) makes this an upsert
+        database.replace(UPLOAD_CHUNK_TABLE_NAME, null, values);
+    }
+
+    public void removeUploadedBytes(Account account, String repoID, String dir,
+                                    String localPath) {
+        String whereClause = String.format("%s = ? and %s = ? and %s = ? and %s = ?",
+                                           UPLOAD_CHUNK_COLUMN_ACCOUNT,
+                                           UPLOAD_CHUNK_COLUMN_REPO_ID,
+                                           UPLOAD_CHUNK_COLUMN_DIR,
+                                           UPLOAD_CHUNK_COLUMN_LOCAL_PATH);
+
+        database.delete(UPLOAD_CHUNK_TABLE_NAME, whereClause,
+                        new String[] { account.getSignature(), repoID, dir, localPath });
+    }
+
+    /**
+     * Save a new transfer task.
+     *
+     * @return the id of the new row, or -1 on error
+     */
+    public long saveTransferRecord(TransferRecord record) {
+        return database.insert(TRANSFER_TABLE_NAME, null, transferRecordToValues(record));
+    }
+
+    /**
+     * Save several new transfer tasks in a single transaction, e.g. a batch of
+     * uploads. The id of each new row, or -1 on error, is set in its record.
+     */
+    public void saveTransferRecords(Collection<TransferRecord> records) {
+        database.beginTransaction();
+        try {
+            for (TransferRecord record : records) {
+                record.id = database.insert(TRANSFER_TABLE_NAME, null,
+                                            transferRecordToValues(record));
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Write the state of several transfer tasks in a single transaction, so
+     * that the progress of all the running tasks costs one disk sync.
+     */
+    public void updateTransferRecords(Collection<TransferRecord> records) {
+        database.beginTransaction();
+        try {
+            for (TransferRecord record : records) {
+                database.update(TRANSFER_TABLE_NAME, transferRecordToValues(record),
+                                TRANSFER_COLUMN_ID + "=?",
+                                new String[] { String.valueOf(record.id) });
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    public void deleteTransferRecord(long id) {
+        database.delete(TRANSFER_TABLE_NAME, TRANSFER_COLUMN_ID + "=?",
+                        new String[] { String.valueOf(id) });
+    }
+
+    /**
+     * Get all the saved transfer tasks, in the order they were added.
+     */
+    public List<TransferRecord> getTransferRecords() {
+        List<TransferRecord> records = new ArrayList<TransferRecord>();
+
+        String[] projection = {
+            TRANSFER_COLUMN_ID,
+            TRANSFER_COLUMN_TYPE,
+            TRANSFER_COLUMN_SERVER,
+            TRANSFER_COLUMN_EMAIL,
+            TRANSFER_COLUMN_REPO_ID,
+            TRANSFER_COLUMN_REPO_NAME,
+            TRANSFER_COLUMN_DIR,
+            TRANSFER_COLUMN_PATH,
+            TRANSFER_COLUMN_IS_UPDATE,
+            TRANSFER_COLUMN_PRIORITY,
+            TRANSFER_COLUMN_STATE,
+            TRANSFER_COLUMN_TRANSFERRED,
+            TRANSFER_COLUMN_TOTAL,
+            TRANSFER_COLUMN_ERR_CODE,
+            TRANSFER_COLUMN_ERR_MSG
+        };
+
+        Cursor c = database.query(
+            TRANSFER_TABLE_NAME,
+            projection,
+            null,   // all the rows
+            null,
+            null,   // don't group the rows
+            null,   // don't filter by row groups
+            TRANSFER_COLUMN_ID);  // The sort order
+
+        c.moveToFirst();
+        while (!c.isAfterLast()) {
+            TransferRecord record = new TransferRecord();
+            record.id = c.getLong(0);
+            record.type = c.getInt(1);
+            record.server = c.getString(2);
+            record.email = c.getString(3);
+            record.repoID = c.getString(4);
+            record.repoName = c.getString(5);
+            record.dir = c.getString(6);
+            record.path = c.getString(7);
+            record.isUpdate = c.getInt(8) != 0;
+            record.priority = c.getString(9);
+            record.state = c.getString(10);
+            record.transferred = c.getLong(11);
+            record.total = c.getLong(12);
+            record.errCode = c.getInt(13);
+            record.errMsg = c.getString(14);
+            records.add(record);
+            c.moveToNext();
+        }
+
+        c.close();
+        return records;
+    }
+
+    private ContentValues transferRecordToValues(TransferRecord record) {
+        ContentValues values = new ContentValues();
+        values.put(TRANSFER_COLUMN_TYPE, record.type);
+        values.put(TRANSFER_COLUMN_SERVER, record.server);
+        values.put(TRANSFER_COLUMN_EMAIL, record.email);
+        values.put(TRANSFER_COLUMN_REPO_ID, record.repoID);
+        values.put(TRANSFER_COLUMN_REPO_NAME, record.repoName);
+        values.put(TRANSFER_COLUMN_DIR, record.dir);
+        values.put(TRANSFER_COLUMN_PATH, record.path);
+        values.put(TRANSFER_COLUMN_IS_UPDATE, record.isUpdate ? 1 : 0);
+        values.put(TRANSFER_COLUMN_PRIORITY, record.priority);
+        values.put(TRANSFER_COLUMN_STATE, record.state);
+        values.put(TRANSFER_COLUMN_TRANSFERRED, record.transferred);
+        values.put(TRANSFER_COLUMN_TOTAL, record.total);
+        values.put(TRANSFER_COLUMN_ERR_CODE, record.errCode);
+        values.put(TRANSFER_COLUMN_ERR_MSG, record.errMsg);
+        return values;
     }
 }
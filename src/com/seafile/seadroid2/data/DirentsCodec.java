@@ -0,0 +1,252 @@
+package com.seafile.seadroid2.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.seafile.seadroid2.data.SeafDirent.DirentType;
+
+/**
+ * A compact binary encoding of a dirents list, used by the dirents cache in
+ * the database instead of the json returned by the server.
+ *
+ * Layout (all the numbers are unsigned varints):
+ *
+ * - version byte, {@link #VERSION}
+ * - number of dirents
+ * - for each dirent:
+ *   - flags byte: {@link #FLAG_DIR}, {@link #FLAG_RAW_ID}
+ *   - id: 20 bytes if it's a 40 chars hex object id, otherwise a
+ *     length-prefixed UTF-8 string and FLAG_RAW_ID is set
+ *   - the length of the prefix shared with the previous name, then the rest
+ *     of the name as a length-prefixed UTF-8 string
+ *   - mtime
+ *   - size, for files only
+ *
+ * The dirents of a directory are usually sorted by name, so the shared
+ * prefixes of names like "IMG_0001.jpg", "IMG_0002.jpg" take a single byte.
+ */
+public class DirentsCodec {
+    public static final int VERSION = 1;
+
+    private static final int FLAG_DIR = 1;
+    private static final int FLAG_RAW_ID = 2;
+
+    private static final int OBJECT_ID_BYTES = 20;
+
+    public static byte[] encode(List<SeafDirent> dirents) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(dirents.size() * 40 + 8);
+        out.write(VERSION);
+        writeVarint(out, dirents.size());
+
+        String previous = "";
+        for (SeafDirent dirent : dirents) {
+            byte[] id = hexToBytes(dirent.id);
+            int flags = 0;
+            if (dirent.isDir()) {
+                flags |= FLAG_DIR;
+            }
+            if (id == null) {
+                flags |= FLAG_RAW_ID;
+            }
+            out.write(flags);
+
+            if (id != null) {
+                out.write(id, 0, id.length);
+            } else {
+                writeString(out, dirent.id);
+            }
+
+            int shared = sharedPrefixLength(previous, dirent.name);
+            writeVarint(out, shared);
+            writeString(out, dirent.name.substring(shared));
+            previous = dirent.name;
+
+            writeVarint(out, dirent.mtime);
+            if (!dirent.isDir()) {
+                writeVarint(out, dirent.size);
+            }
+        }
+
+        return out.toByteArray();
+    }
+
+    /**
+     * @return the dirents, or null if the data is corrupted or written by
+     * another version of the codec
+     */
+    public static List<SeafDirent> decode(byte[] data) {
+        if (data == null || data.length == 0 || data[0] != VERSION) {
+            return null;
+        }
+
+        Input in = new Input(data);
+        in.pos = 1;
+        try {
+            long count = in.readVarint();
+            if (count > data.length) {
+                // every dirent takes at least one byte
+                return null;
+            }
+            List<SeafDirent> dirents = new ArrayList<SeafDirent>((int)count);
+
+            String previous = "";
+            for (int i = 0; i < count; i++) {
+                SeafDirent dirent = new SeafDirent();
+                int flags = in.readByte();
+
+                if ((flags & FLAG_RAW_ID) != 0) {
+                    dirent.id = in.readString();
+                } else {
+                    dirent.id = bytesToHex(data, in.pos, OBJECT_ID_BYTES);
+                    in.skip(OBJECT_ID_BYTES);
+                }
+
+                int shared = (int)in.readVarint();
+                if (shared < 0 || shared > previous.length()) {
+                    return null;
+                }
+                dirent.name = previous.substring(0, shared) + in.readString();
+                previous = dirent.name;
+
+                dirent.mtime = in.readVarint();
+                if ((flags & FLAG_DIR) != 0) {
+                    dirent.type = DirentType.DIR;
+                } else {
+                    dirent.type = DirentType.FILE;
+                    dirent.size = in.readVarint();
+                }
+                dirents.add(dirent);
+            }
+            return dirents;
+        } catch (ArrayIndexOutOfBoundsException e) {
+            return null;
+        } catch (UnsupportedEncodingException e) {
+            return null;
+        }
+    }
+
+    private static int sharedPrefixLength(String a, String b) {
+        int n = Math.min(a.length(), b.length());
+        int i = 0;
+        while (i < n && a.charAt(i) == b.charAt(i)) {
+            i++;
+        }
+        // Don't split a surrogate pair
+        if (i > 0 && Character.isHighSurrogate(a.charAt(i - 1))) {
+            i--;
+        }
+        return i;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int)value);
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String s) {
+        byte[] bytes;
+        try {
+            bytes = s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported
+            throw new RuntimeException(e);
+        }
+        writeVarint(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * @return the bytes of a lower case 40 chars hex id, or null if the id
+     * has another form
+     */
+    private static byte[] hexToBytes(String id) {
+        if (id == null || id.length() != OBJECT_ID_BYTES * 2) {
+            return null;
+        }
+
+        byte[] bytes = new byte[OBJECT_ID_BYTES];
+        for (int i = 0; i < OBJECT_ID_BYTES; i++) {
+            int hi = hexValue(id.charAt(2 * i));
+            int lo = hexValue(id.charAt(2 * i + 1));
+            if (hi < 0 || lo < 0) {
+                return null;
+            }
+            bytes[i] = (byte)((hi << 4) | lo);
+        }
+        return bytes;
+    }
+
+    private static int hexValue(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        } else if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        // Upper case ids are kept raw, so that they are decoded unchanged
+        return -1;
+    }
+
+    private static String bytesToHex(byte[] data, int offset, int length) {
+        if (offset + length > data.length) {
+            throw new ArrayIndexOutOfBoundsException();
+        }
+
+        char[] chars = new char[length * 2];
+        for (int i = 0; i < length; i++) {
+            int b = data[offset + i] & 0xFF;
+            chars[2 * i] = HEX_DIGITS[b >>> 4];
+            chars[2 * i + 1] = HEX_DIGITS[b & 0x0F];
+        }
+        return new String(chars);
+    }
+
+    private static class Input {
+        final byte[] data;
+        int pos;
+
+        Input(byte[] data) {
+            this.data = data;
+        }
+
+        int readByte() {
+            return data[pos++] & 0xFF;
+        }
+
+        void skip(int n) {
+            pos += n;
+        }
+
+        long readVarint() {
+            long value = 0;
+            int shift = 0;
+            while (true) {
+                int b = readByte();
+                value |= (long)(b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+                shift += 7;
+                if (shift > 63) {
+                    throw new ArrayIndexOutOfBoundsException();
+                }
+            }
+        }
+
+        String readString() throws UnsupportedEncodingException {
+            int length = (int)readVarint();
+            if (length < 0 || pos + length > data.length) {
+                throw new ArrayIndexOutOfBoundsException();
+            }
+            String s = new String(data, pos, length, "UTF-8");
+            pos += length;
+            return s;
+        }
+    }
+}
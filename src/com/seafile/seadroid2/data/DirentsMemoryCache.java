@@ -0,0 +1,138 @@
+package com.seafile.seadroid2.data;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.seafile.seadroid2.account.Account;
+
+/**
+ * Keep the parsed dirents of the recently visited directories in memory, so
+ * that going back to a directory doesn't read and decode its cached dirents
+ * from the database again.
+ *
+ * An entry is the dirents of (repo id, path) at a given dir id. The cache is
+ * bounded by the total number of dirents it holds, not by the number of
+ * directories, so that a few huge directories can't take all the memory; the
+ * least recently used directories are evicted first.
+ *
+ * The lists are shared by all the callers and must not be modified.
+ */
+class DirentsMemoryCache {
+    /** The maximum number of dirents kept for an account */
+    public static final int MAX_DIRENTS = 20000;
+
+    private static HashMap<Account, DirentsMemoryCache> caches =
+            new HashMap<Account, DirentsMemoryCache>();
+
+    static class Entry {
+        final String dirID;
+        final List<SeafDirent> dirents;
+
+        Entry(String dirID, List<SeafDirent> dirents) {
+            this.dirID = dirID;
+            this.dirents = dirents;
+        }
+    }
+
+    private final LinkedHashMap<String, Entry> entries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private int size = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+
+    private DirentsMemoryCache() {
+    }
+
+    /**
+     * Get the dirents cache of an account. All DataManager instances of the
+     * same account share one cache.
+     */
+    public static synchronized DirentsMemoryCache getCache(Account account) {
+        DirentsMemoryCache cache = caches.get(account);
+        if (cache == null) {
+            cache = new DirentsMemoryCache();
+            caches.put(account, cache);
+        }
+        return cache;
+    }
+
+    private static String makeKey(String repoID, String path) {
+        // A repo id never contains a ':'
+        return repoID + ":" + path;
+    }
+
+    /**
+     * @return the cached dirents of the directory, whatever their dir id, or
+     * null if they are not in memory
+     */
+    public synchronized Entry get(String repoID, String path) {
+        Entry entry = entries.get(makeKey(repoID, path));
+        if (entry == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return entry;
+    }
+
+    /**
+     * Like {@link #get(String, String)}, but not counted as a hit or miss.
+     */
+    public synchronized boolean contains(String repoID, String path) {
+        return entries.containsKey(makeKey(repoID, path));
+    }
+
+    /**
+     * @return the new entry, even if it's too large to be kept
+     */
+    public synchronized Entry put(String repoID, String path, String dirID,
+                                  List<SeafDirent> dirents) {
+        String key = makeKey(repoID, path);
+        Entry old = entries.remove(key);
+        if (old != null) {
+            size -= old.dirents.size();
+        }
+
+        Entry entry = new Entry(dirID, Collections.unmodifiableList(dirents));
+        if (dirents.size() > MAX_DIRENTS) {
+            // Would evict everything else and still not fit
+            return entry;
+        }
+
+        entries.put(key, entry);
+        size += dirents.size();
+
+        Iterator<Map.Entry<String, Entry>> iter = entries.entrySet().iterator();
+        while (size > MAX_DIRENTS && iter.hasNext()) {
+            Entry eldest = iter.next().getValue();
+            size -= eldest.dirents.size();
+            iter.remove();
+        }
+        return entry;
+    }
+
+    public synchronized void invalidate(String repoID, String path) {
+        Entry old = entries.remove(makeKey(repoID, path));
+        if (old != null) {
+            size -= old.dirents.size();
+        }
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /** The number of dirents currently held */
+    public synchronized int size() {
+        return size;
+    }
+}
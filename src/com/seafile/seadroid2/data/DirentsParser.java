@@ -0,0 +1,340 @@
+package com.seafile.seadroid2.data;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONException;
+
+import com.seafile.seadroid2.data.SeafDirent.DirentType;
+
+/**
+ * A pull parser for the dirents list returned by the "dir" api, like
+ *
+ * [{"id": "...", "type": "file", "name": "a.txt", "size": 12, "mtime": 1372142640}, ...]
+ *
+ * The dirents are built while the characters are read, so a large directory
+ * is never held as a whole string or as a JSONArray tree. We can't use
+ * android.util.JsonReader because it's only available since API 11.
+ *
+ * Unknown keys are skipped, whatever their value. An entry without an id,
+ * name, mtime or type, or a file entry without a size, is dropped, just like
+ * {@link SeafDirent#fromJson(org.json.JSONObject)} does.
+ */
+public class DirentsParser {
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Reader reader;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int pos = 0;
+    private int limit = 0;
+    private final StringBuilder sb = new StringBuilder();
+
+    private DirentsParser(Reader reader) {
+        this.reader = reader;
+    }
+
+    public static List<SeafDirent> parse(Reader reader) throws IOException, JSONException {
+        return new DirentsParser(reader).parseDirents();
+    }
+
+    /**
+     * @return the dirents, or null if the json is ill-formatted
+     */
+    public static List<SeafDirent> parse(String json) {
+        if (json == null) {
+            return null;
+        }
+
+        try {
+            return parse(new StringReader(json));
+        } catch (IOException e) {
+            return null;
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    private List<SeafDirent> parseDirents() throws IOException, JSONException {
+        List<SeafDirent> dirents = new ArrayList<SeafDirent>();
+
+        expect('[');
+        if (peekToken() == ']') {
+            pos++;
+            return dirents;
+        }
+
+        while (true) {
+            SeafDirent dirent = parseDirent();
+            if (dirent != null) {
+                dirents.add(dirent);
+            }
+
+            char c = nextToken();
+            if (c == ']') {
+                return dirents;
+            } else if (c != ',') {
+                throw syntaxError("expected ',' or ']'");
+            }
+        }
+    }
+
+    private SeafDirent parseDirent() throws IOException, JSONException {
+        String id = null, name = null, type = null;
+        long size = -1, mtime = -1;
+
+        expect('{');
+        if (peekToken() == '}') {
+            pos++;
+            return null;
+        }
+
+        while (true) {
+            expect('"');
+            String key = readString();
+            expect(':');
+
+            if (key.equals("id")) {
+                id = readStringValue();
+            } else if (key.equals("name")) {
+                name = readStringValue();
+            } else if (key.equals("type")) {
+                type = readStringValue();
+            } else if (key.equals("size")) {
+                size = readLongValue();
+            } else if (key.equals("mtime")) {
+                mtime = readLongValue();
+            } else {
+                skipValue();
+            }
+
+            char c = nextToken();
+            if (c == '}') {
+                break;
+            } else if (c != ',') {
+                throw syntaxError("expected ',' or '}'");
+            }
+        }
+
+        if (id == null || name == null || type == null || mtime < 0) {
+            return null;
+        }
+
+        SeafDirent dirent = new SeafDirent();
+        dirent.id = id;
+        dirent.name = name;
+        dirent.mtime = mtime;
+        if (type.equals("file")) {
+            if (size < 0) {
+                return null;
+            }
+            dirent.type = DirentType.FILE;
+            dirent.size = size;
+        } else {
+            dirent.type = DirentType.DIR;
+        }
+        return dirent;
+    }
+
+    /** @return the string, or null if the value is not a string */
+    private String readStringValue() throws IOException, JSONException {
+        if (peekToken() != '"') {
+            skipValue();
+            return null;
+        }
+        pos++;
+        return readString();
+    }
+
+    /** @return the number, or -1 if the value is not a number */
+    private long readLongValue() throws IOException, JSONException {
+        char c = peekToken();
+        if (c != '-' && (c < '0' || c > '9')) {
+            skipValue();
+            return -1;
+        }
+
+        String literal = readLiteral();
+        try {
+            return Long.parseLong(literal);
+        } catch (NumberFormatException e) {
+            try {
+                return (long)Double.parseDouble(literal);
+            } catch (NumberFormatException e2) {
+                throw syntaxError("bad number " + literal);
+            }
+        }
+    }
+
+    private void skipValue() throws IOException, JSONException {
+        char c = nextToken();
+        switch (c) {
+        case '"':
+            readString();
+            return;
+        case '{':
+        case '[':
+            char close = c == '{' ? '}' : ']';
+            if (peekToken() == close) {
+                pos++;
+                return;
+            }
+            while (true) {
+                if (c == '{') {
+                    expect('"');
+                    readString();
+                    expect(':');
+                }
+                skipValue();
+                char sep = nextToken();
+                if (sep == close) {
+                    return;
+                } else if (sep != ',') {
+                    throw syntaxError("expected ',' or '" + close + "'");
+                }
+            }
+        default:
+            pos--;
+            readLiteral();
+        }
+    }
+
+    /**
+     * Read a number, true, false or null.
+     */
+    private String readLiteral() throws IOException, JSONException {
+        sb.setLength(0);
+        while (fill()) {
+            char c = buffer[pos];
+            if (c == ',' || c == '}' || c == ']' || isWhitespace(c)) {
+                break;
+            }
+            sb.append(c);
+            pos++;
+        }
+        if (sb.length() == 0) {
+            throw syntaxError("expected a value");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Read the rest of a string whose opening quote has been consumed.
+     */
+    private String readString() throws IOException, JSONException {
+        sb.setLength(0);
+        while (true) {
+            if (!fill()) {
+                throw syntaxError("unterminated string");
+            }
+
+            // Copy the plain characters in one go
+            int start = pos;
+            while (pos < limit && buffer[pos] != '"' && buffer[pos] != '\\') {
+                pos++;
+            }
+            sb.append(buffer, start, pos - start);
+            if (pos == limit) {
+                continue;
+            }
+
+            char c = buffer[pos++];
+            if (c == '"') {
+                return sb.toString();
+            }
+            sb.append(readEscape());
+        }
+    }
+
+    private char readEscape() throws IOException, JSONException {
+        if (!fill()) {
+            throw syntaxError("unterminated escape");
+        }
+        char c = buffer[pos++];
+        switch (c) {
+        case 'b':
+            return '\b';
+        case 'f':
+            return '\f';
+        case 'n':
+            return '\n';
+        case 'r':
+            return '\r';
+        case 't':
+            return '\t';
+        case 'u':
+            int value = 0;
+            for (int i = 0; i < 4; i++) {
+                if (!fill()) {
+                    throw syntaxError("unterminated escape");
+                }
+                int digit = Character.digit(buffer[pos++], 16);
+                if (digit < 0) {
+                    throw syntaxError("bad unicode escape");
+                }
+                value = (value << 4) | digit;
+            }
+            return (char)value;
+        default:
+            // '"', '\\', '/'
+            return c;
+        }
+    }
+
+    private void expect(char expected) throws IOException, JSONException {
+        if (nextToken() != expected) {
+            throw syntaxError("expected '" + expected + "'");
+        }
+    }
+
+    /**
+     * Consume and return the next non-whitespace character.
+     */
+    private char nextToken() throws IOException, JSONException {
+        char c = peekToken();
+        pos++;
+        return c;
+    }
+
+    /**
+     * Return the next non-whitespace character without consuming it.
+     */
+    private char peekToken() throws IOException, JSONException {
+        while (fill()) {
+            char c = buffer[pos];
+            if (!isWhitespace(c)) {
+                return c;
+            }
+            pos++;
+        }
+        throw syntaxError("unexpected end of input");
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+    }
+
+    /**
+     * Make sure there is at least one character in the buffer.
+     *
+     * @return false at the end of the input
+     */
+    private boolean fill() throws IOException {
+        if (pos < limit) {
+            return true;
+        }
+        limit = reader.read(buffer, 0, buffer.length);
+        pos = 0;
+        if (limit <= 0) {
+            limit = 0;
+            return false;
+        }
+        return true;
+    }
+
+    private JSONException syntaxError(String msg) {
+        return new JSONException(msg);
+    }
+}
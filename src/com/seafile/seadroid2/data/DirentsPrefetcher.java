@@ -0,0 +1,289 @@
+package com.seafile.seadroid2.data;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Process;
+import android.util.Log;
+import android.util.Pair;
+
+import com.seafile.seadroid2.SeafException;
+import com.seafile.seadroid2.Utils;
+import com.seafile.seadroid2.account.Account;
+
+/**
+ * Fetch the dirents of the sub directories of a listing in the background,
+ * so that they are already in the dirents cache when the user opens one of
+ * them. After a refresh, the cached sub directories can be revalidated in
+ * one batch as well.
+ *
+ * The prefetch requests run on {@link #WORKERS} background priority threads.
+ * They are background requests of the connection pool, as are the thumbnail
+ * fetches, so together they never hold the last api request slot of the
+ * account and the listing the user is waiting for doesn't queue behind them.
+ * They are limited to {@link #MAX_REQUESTS_PER_MINUTE}
+ * requests and {@link #MAX_BYTES_PER_MINUTE} bytes of listings per minute; the
+ * directories left when the budget runs out are not fetched.
+ *
+ * Starting a new prefetch or calling {@link #cancel()} drops the directories
+ * still waiting, so the prefetch never outlives the listing it was started
+ * from. A request already sent is left to finish, its result is cached anyway.
+ */
+public class DirentsPrefetcher {
+    private static final String DEBUG_TAG = "DirentsPrefetcher";
+
+    public static final int WORKERS = 2;
+    public static final int MAX_REQUESTS_PER_MINUTE = 30;
+    public static final long MAX_BYTES_PER_MINUTE = 512 * 1024;
+    /** At most this many sub directories are prefetched per listing */
+    public static final int MAX_DIRS_PER_LISTING = 20;
+
+    private static final long BUDGET_WINDOW = 60 * 1000;
+    /** The number of prefetched directories remembered for the hit rate */
+    private static final int MAX_TRACKED_DIRS = 256;
+
+    private final DataManager dataManager;
+    private final ThreadPoolExecutor executor;
+    private final AtomicInteger generation = new AtomicInteger();
+    private volatile boolean enabled = true;
+
+    // The budget of the current window
+    private long windowStart = 0;
+    private int windowRequests = 0;
+    private long windowStartBytes = 0;
+
+    // The prefetched directories not visited yet
+    private final LinkedHashSet<String> prefetched = new LinkedHashSet<String>();
+    private long prefetchCount = 0;
+    private long hitCount = 0;
+
+    public DirentsPrefetcher(Account account) {
+        // A DataManager of our own, so that the bytes it receives are only
+        // those of the prefetch
+        dataManager = new DataManager(account);
+        dataManager.setBackground(true);
+        executor = new ThreadPoolExecutor(WORKERS, WORKERS, 0, TimeUnit.MILLISECONDS,
+                                          new LinkedBlockingQueue<Runnable>(),
+                                          new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, DEBUG_TAG);
+                return thread;
+            }
+        });
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        if (!enabled) {
+            cancel();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    private static String makeKey(String repoID, String path) {
+        // A repo id never contains a ':'
+        return repoID + ":" + path;
+    }
+
+    /**
+     * Prefetch the sub directories of a directory which has just been
+     * listed. The prefetch of the previous listing is cancelled.
+     */
+    public void prefetch(String repoID, String dir, List<SeafDirent> dirents) {
+        final int gen = generation.incrementAndGet();
+        executor.getQueue().clear();
+        if (!enabled) {
+            return;
+        }
+
+        int n = 0;
+        for (SeafDirent dirent : dirents) {
+            if (!dirent.isDir()) {
+                continue;
+            }
+            if (n++ >= MAX_DIRS_PER_LISTING) {
+                break;
+            }
+
+            final String repo = repoID;
+            final String path = Utils.pathJoin(dir, dirent.name);
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    fetch(gen, repo, path);
+                }
+            });
+        }
+    }
+
+    /**
+     * Revalidate in one batch the cached sub directories of a directory the
+     * user has just refreshed, within the budget. Must be called after
+     * {@link #prefetch(String, String, List)} for the same listing, which
+     * fetches the sub directories which are not cached.
+     */
+    public void revalidate(final String repoID, final String dir, List<SeafDirent> dirents) {
+        if (!enabled) {
+            return;
+        }
+
+        final int gen = generation.get();
+        final List<String> paths = new ArrayList<String>();
+        for (SeafDirent dirent : dirents) {
+            if (dirent.isDir()) {
+                paths.add(Utils.pathJoin(dir, dirent.name));
+                if (paths.size() >= MAX_DIRS_PER_LISTING) {
+                    break;
+                }
+            }
+        }
+        if (paths.isEmpty()) {
+            return;
+        }
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                revalidate(gen, repoID, paths);
+            }
+        });
+    }
+
+    /**
+     * Drop the directories waiting to be prefetched, e.g. because the user
+     * has moved to another directory.
+     */
+    public void cancel() {
+        generation.incrementAndGet();
+        executor.getQueue().clear();
+    }
+
+    public void shutdown() {
+        cancel();
+        executor.shutdown();
+    }
+
+    private void fetch(int gen, String repoID, String path) {
+        if (gen != generation.get() || !Utils.isNetworkOn()) {
+            return;
+        }
+
+        if (dataManager.hasCachedDirents(repoID, path)) {
+            // Will be shown from the cache anyway
+            return;
+        }
+
+        if (!takeRequest()) {
+            Log.d(DEBUG_TAG, "budget exhausted, skip " + path);
+            return;
+        }
+
+        try {
+            if (dataManager.getDirentsFromServer(repoID, path) == null) {
+                return;
+            }
+        } catch (SeafException e) {
+            // e.g. an encrypted repo without password, the user will see the
+            // error when opening the directory
+            Log.d(DEBUG_TAG, "failed to prefetch " + path + ": " + e.getMessage());
+            return;
+        }
+
+        synchronized (this) {
+            prefetchCount++;
+            prefetched.add(makeKey(repoID, path));
+            if (prefetched.size() > MAX_TRACKED_DIRS) {
+                Iterator<String> iter = prefetched.iterator();
+                iter.next();
+                iter.remove();
+            }
+        }
+    }
+
+    private void revalidate(int gen, String repoID, List<String> paths) {
+        if (gen != generation.get() || !Utils.isNetworkOn()) {
+            return;
+        }
+
+        List<Pair<String, String>> dirs = new ArrayList<Pair<String, String>>();
+        for (String path : paths) {
+            if (!dataManager.hasCachedDirents(repoID, path)) {
+                continue;
+            }
+            if (!takeRequest()) {
+                Log.d(DEBUG_TAG, "budget exhausted, skip revalidation of " + path);
+                break;
+            }
+            dirs.add(new Pair<String, String>(repoID, path));
+        }
+
+        // The other worker helps if it is idle
+        List<Pair<String, String>> changed = dataManager.revalidateDirents(dirs, executor);
+        Log.d(DEBUG_TAG, String.format("revalidated %d dirs, %d changed",
+                                       dirs.size(), changed.size()));
+    }
+
+    /**
+     * Count a request in the budget of the current window.
+     *
+     * @return false if the budget of the window has been used up
+     */
+    private synchronized boolean takeRequest() {
+        long now = System.currentTimeMillis();
+        long bytes = dataManager.getReceivedDirentsBytes();
+        if (now - windowStart >= BUDGET_WINDOW) {
+            windowStart = now;
+            windowRequests = 0;
+            windowStartBytes = bytes;
+        }
+
+        if (windowRequests >= MAX_REQUESTS_PER_MINUTE ||
+            bytes - windowStartBytes >= MAX_BYTES_PER_MINUTE) {
+            return false;
+        }
+        windowRequests++;
+        return true;
+    }
+
+    /**
+     * Tell the prefetcher the user has opened a directory, for the hit rate.
+     */
+    public synchronized void onVisit(String repoID, String path) {
+        if (prefetched.remove(makeKey(repoID, path))) {
+            hitCount++;
+            Log.d(DEBUG_TAG, String.format("prefetch hit, %d of %d prefetched dirs visited",
+                                           hitCount, prefetchCount));
+        }
+    }
+
+    /** The number of directories fetched by the prefetcher */
+    public synchronized long getPrefetchCount() {
+        return prefetchCount;
+    }
+
+    /** The number of prefetched directories the user has opened afterwards */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized double getHitRate() {
+        return prefetchCount == 0 ? 0 : (double)hitCount / prefetchCount;
+    }
+}
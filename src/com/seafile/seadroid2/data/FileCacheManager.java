@@ -0,0 +1,221 @@
+package com.seafile.seadroid2.data;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.content.SharedPreferences;
+import android.os.Process;
+import android.util.Log;
+
+import com.seafile.seadroid2.SeadroidApplication;
+import com.seafile.seadroid2.account.Account;
+
+/**
+ * Keep the downloaded files of an account within a quota of bytes.
+ *
+ * The size and mtime of each file are recorded in the FileCache table when it
+ * is cached, and its last access time each time it is opened. When the
+ * recorded size of the cached files goes over the quota, the least recently
+ * used files are deleted until they take {@link #LOW_WATER_PERCENT} of it.
+ *
+ * A file whose size or mtime differ from the recorded ones has been modified
+ * locally, and is never evicted; neither is a file used in the last
+ * {@link #MIN_IDLE_TIME} ms, e.g. the one the user is opening.
+ *
+ * The eviction runs on one background priority thread shared by all the
+ * accounts, {@link #EVICT_BATCH} files at a time, each batch deleted in its
+ * own transaction.
+ */
+public class FileCacheManager {
+    private static final String DEBUG_TAG = "FileCacheManager";
+
+    public static final long DEFAULT_QUOTA = 512L * 1024 * 1024;
+    public static final int LOW_WATER_PERCENT = 90;
+    public static final int EVICT_BATCH = 20;
+    public static final long MIN_IDLE_TIME = 5 * 60 * 1000;
+
+    private static final String SHARED_PREF_NAME = "FileCache";
+    private static final String SHARED_PREF_QUOTA_KEY = "quota";
+
+    private static HashMap<Account, FileCacheManager> managers =
+            new HashMap<Account, FileCacheManager>();
+
+    private static final ThreadPoolExecutor executor =
+            new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                                   new LinkedBlockingQueue<Runnable>(),
+                                   new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, DEBUG_TAG);
+        }
+    });
+
+    private final Account account;
+    private DataManager dataManager;
+    // The recorded size of the cached files, -1 until it has been counted.
+    // Only an estimate between two evictions, as a file cached again is
+    // counted twice.
+    private long size = -1;
+    private boolean scheduled = false;
+
+    private FileCacheManager(Account account) {
+        this.account = account;
+    }
+
+    /**
+     * Get the file cache manager of an account. All DataManager instances of
+     * the same account share one manager.
+     */
+    public static synchronized FileCacheManager getManager(Account account) {
+        FileCacheManager manager = managers.get(account);
+        if (manager == null) {
+            manager = new FileCacheManager(account);
+            managers.put(account, manager);
+        }
+        return manager;
+    }
+
+    private static SharedPreferences getSharedPreferences() {
+        return SeadroidApplication.getAppContext().getSharedPreferences(SHARED_PREF_NAME, 0);
+    }
+
+    /**
+     * @return the maximum number of bytes of cached files of each account
+     */
+    public static long getQuota() {
+        return getSharedPreferences().getLong(SHARED_PREF_QUOTA_KEY, DEFAULT_QUOTA);
+    }
+
+    /**
+     * Change the quota. It is enforced the next time a file is cached or
+     * {@link #trim()} is called.
+     */
+    public static void setQuota(long quota) {
+        SharedPreferences.Editor editor = getSharedPreferences().edit();
+        editor.putLong(SHARED_PREF_QUOTA_KEY, quota);
+        editor.commit();
+    }
+
+    /**
+     * Count a file which has just been cached, and start the eviction in the
+     * background if the quota is exceeded.
+     */
+    public synchronized void onFileCached(long fileSize) {
+        if (size < 0) {
+            schedule();
+            return;
+        }
+
+        size += fileSize;
+        if (size > getQuota()) {
+            schedule();
+        }
+    }
+
+    /**
+     * Enforce the quota in the background, e.g. when the app starts or the
+     * quota has been lowered.
+     */
+    public synchronized void trim() {
+        schedule();
+    }
+
+    private synchronized void schedule() {
+        if (scheduled) {
+            return;
+        }
+        scheduled = true;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                evict();
+            }
+        });
+    }
+
+    private void evict() {
+        synchronized (this) {
+            // A file cached from now on schedules another pass
+            scheduled = false;
+            if (dataManager == null) {
+                dataManager = new DataManager(account);
+            }
+        }
+
+        DatabaseHelper dbHelper = DatabaseHelper.getDatabaseHelper();
+        long quota = getQuota();
+        long total = dbHelper.getFileCacheSize(account);
+        if (total > quota) {
+            long target = quota / 100 * LOW_WATER_PERCENT;
+            Log.d(DEBUG_TAG, String.format("%d bytes cached, evict down to %d", total, target));
+            total = evict(dbHelper, total, target);
+        }
+
+        synchronized (this) {
+            size = total;
+        }
+    }
+
+    /**
+     * @return the recorded size of the cached files left
+     */
+    private long evict(DatabaseHelper dbHelper, long total, long target) {
+        long now = System.currentTimeMillis();
+        SeafCachedFile after = null;
+        boolean done = false;
+        while (!done && total > target) {
+            List<SeafCachedFile> page =
+                    dbHelper.getLeastRecentFileCacheItems(dataManager, after, EVICT_BATCH);
+            if (page.isEmpty()) {
+                break;
+            }
+            after = page.get(page.size() - 1);
+
+            List<SeafCachedFile> evicted = new ArrayList<SeafCachedFile>();
+            for (SeafCachedFile cf : page) {
+                if (total <= target) {
+                    break;
+                }
+                if (now - cf.atime < MIN_IDLE_TIME) {
+                    // The following ones are even more recent
+                    done = true;
+                    break;
+                }
+
+                File file = cf.getFile();
+                if (file.exists()) {
+                    if (file.length() != cf.size || file.lastModified() != cf.mtime) {
+                        // Modified locally, e.g. edited and not uploaded yet
+                        continue;
+                    }
+                    if (!file.delete()) {
+                        continue;
+                    }
+                }
+                total -= cf.size;
+                evicted.add(cf);
+            }
+
+            dbHelper.deleteFileCacheItems(evicted);
+            Log.d(DEBUG_TAG, String.format("evicted %d files", evicted.size()));
+        }
+
+        if (total > target) {
+            Log.d(DEBUG_TAG, String.format("%d bytes over the target left, in use or modified",
+                                           total - target));
+        }
+        return total;
+    }
+}
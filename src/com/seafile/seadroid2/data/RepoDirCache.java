@@ -0,0 +1,101 @@
+package com.seafile.seadroid2.data;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import android.util.Pair;
+
+import com.seafile.seadroid2.account.Account;
+
+/**
+ * Keep the (repo name, repo id) to local directory mapping of an account in
+ * memory, so that resolving the local file of a row doesn't query the
+ * RepoDir table. The mapping is loaded from the database once, then kept in
+ * sync by {@link #put(String, String, String)} each time a mapping is saved.
+ *
+ * It also remembers the local directories known to exist, so that resolving
+ * many files of the same directory checks or creates it only once. A
+ * directory removed behind our back is only noticed by
+ * {@link #makeDir(File, boolean)} with check set.
+ */
+class RepoDirCache {
+    /** The maximum number of existing directories remembered */
+    private static final int MAX_EXISTING_DIRS = 1024;
+
+    private static HashMap<Account, RepoDirCache> caches =
+            new HashMap<Account, RepoDirCache>();
+
+    private final Account account;
+    private Map<Pair<String, String>, String> repoDirs;
+    private final HashSet<String> existingDirs = new HashSet<String>();
+
+    private RepoDirCache(Account account) {
+        this.account = account;
+    }
+
+    /**
+     * Get the repo dir cache of an account. All DataManager instances of the
+     * same account share one cache.
+     */
+    public static synchronized RepoDirCache getCache(Account account) {
+        RepoDirCache cache = caches.get(account);
+        if (cache == null) {
+            cache = new RepoDirCache(account);
+            caches.put(account, cache);
+        }
+        return cache;
+    }
+
+    /**
+     * @return the local directory of the repo, or null if it has no mapping yet
+     */
+    public synchronized String get(String repoName, String repoID) {
+        if (repoDirs == null) {
+            repoDirs = DatabaseHelper.getDatabaseHelper().getRepoDirs(account);
+        }
+        return repoDirs.get(new Pair<String, String>(repoName, repoID));
+    }
+
+    /**
+     * Remember a mapping which has just been saved in the database.
+     */
+    public synchronized void put(String repoName, String repoID, String dir) {
+        if (repoDirs == null) {
+            repoDirs = DatabaseHelper.getDatabaseHelper().getRepoDirs(account);
+        }
+        repoDirs.put(new Pair<String, String>(repoName, repoID), dir);
+    }
+
+    /**
+     * Make sure a local directory exists.
+     *
+     * @param check whether to check the directory even if it is known to
+     * exist, e.g. before writing a file into it
+     * @return false if the directory could not be created
+     */
+    public boolean makeDir(File dir, boolean check) {
+        String path = dir.getPath();
+        synchronized (this) {
+            if (!check && existingDirs.contains(path)) {
+                return true;
+            }
+        }
+
+        if (!dir.exists() && !dir.mkdirs() && !dir.exists()) {
+            synchronized (this) {
+                existingDirs.remove(path);
+            }
+            return false;
+        }
+
+        synchronized (this) {
+            if (existingDirs.size() >= MAX_EXISTING_DIRS) {
+                existingDirs.clear();
+            }
+            existingDirs.add(path);
+        }
+        return true;
+    }
+}
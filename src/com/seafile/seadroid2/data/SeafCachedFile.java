@@ -12,7 +12,14 @@ public class SeafCachedFile implements SeafItem {
     public String repoID;
     public String path;
     public String accountSignature;
-    File file;
+    /** The size and mtime of the local file when it was cached */
+    public long size;
+    public long mtime;
+    /** When the file was last used */
+    public long atime;
+    // Resolves the local file when first needed
+    DataManager dataManager;
+    private File file;
 
     public SeafCachedFile() {
         id = -1;
@@ -23,18 +30,28 @@ public class SeafCachedFile implements SeafItem {
         return path.substring(path.lastIndexOf('/') + 1);
     }
 
+    /**
+     * The local copy of the file, resolved on the first call
+     */
+    public File getFile() {
+        if (file == null) {
+            file = dataManager.getLocalRepoFile(repoName, repoID, path);
+        }
+        return file;
+    }
+
     @Override
     public String getSubtitle() {
-        return Utils.readableFileSize(file.length());
+        return Utils.readableFileSize(getFile().length());
     }
 
     @Override
     public int getIcon() {
-        return Utils.getFileIcon(file.getName());
+        return Utils.getFileIcon(getTitle());
     }
     
     public long getSize() {
-        return file.length();
+        return getFile().length();
     }
     
     public String getAccountSignature() {
@@ -0,0 +1,481 @@
+package com.seafile.seadroid2.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+/**
+ * The thumbnails on disk, in {@link DataManager#getThumbDirectory()}.
+ *
+ * The store holds at most {@link #MAX_BYTES} of thumbnails and evicts the
+ * least recently used ones first. The thumbnails made on the device are
+ * saved as JPEG at {@link #JPEG_QUALITY}, a fraction of the size of a
+ * lossless PNG for a photo. WebP would be smaller still but can only be
+ * written since API 14.
+ *
+ * There are two layouts:
+ *
+ * - one file per thumbnail, the default. The recency of a thumbnail is kept
+ *   in the modification time of its file, so it survives a restart.
+ * - a single packed file, see {@link #setPacked(boolean)}, which saves the
+ *   inode and the open() of each of the thousands of tiny files. Thumbnails
+ *   are appended to the pack, and the pack is compacted when it's full.
+ *   The recency is only kept in memory, after a restart the thumbnails are
+ *   evicted in the order they were written.
+ */
+public class ThumbnailStore {
+    private static final String DEBUG_TAG = "ThumbnailStore";
+
+    public static final long MAX_BYTES = 8 * 1024 * 1024;
+    public static final int JPEG_QUALITY = 80;
+
+    /** Evict down to this after reaching MAX_BYTES, so a full store is not compacted every time */
+    private static final long LOW_WATER_BYTES = MAX_BYTES * 3 / 4;
+
+    private static final String SUFFIX = ".thumb";
+    private static final String PACK_FILE = "thumbs.pack";
+
+    private static ThumbnailStore store;
+    private static boolean usePackedFile = false;
+
+    private static class Entry {
+        // In the pack only
+        long offset;
+        final int length;
+
+        Entry(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final File dir;
+    private final boolean packed;
+    // In access order, the eldest first
+    private final LinkedHashMap<String, Entry> entries =
+            new LinkedHashMap<String, Entry>(64, 0.75f, true);
+    private long totalBytes = 0;
+    private RandomAccessFile pack;
+
+    /**
+     * Choose the layout of the store. Only has an effect before the first
+     * call of {@link #getStore()}.
+     */
+    public static synchronized void setPacked(boolean packed) {
+        usePackedFile = packed;
+    }
+
+    public static synchronized ThumbnailStore getStore() {
+        if (store == null) {
+            store = new ThumbnailStore(new File(DataManager.getThumbDirectory()), usePackedFile);
+        }
+        return store;
+    }
+
+    private ThumbnailStore(File dir, boolean packed) {
+        this.dir = dir;
+        this.packed = packed;
+        if (packed) {
+            loadPack();
+        } else {
+            loadFiles();
+        }
+    }
+
+    /**
+     * @return the encoded thumbnail, or null if it's not in the store
+     */
+    public synchronized byte[] get(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+
+        byte[] data = packed ? readFromPack(entry) : readFile(key, entry);
+        if (data == null) {
+            remove(key);
+        }
+        return data;
+    }
+
+    /**
+     * @return the thumbnail, or null if it's not in the store
+     */
+    public Bitmap getBitmap(String key) {
+        byte[] data = get(key);
+        if (data == null) {
+            return null;
+        }
+        return BitmapFactory.decodeByteArray(data, 0, data.length);
+    }
+
+    /**
+     * Save an encoded thumbnail, e.g. as sent by the server.
+     */
+    public synchronized void put(String key, byte[] data) {
+        remove(key);
+
+        try {
+            if (packed) {
+                appendToPack(key, data);
+            } else {
+                writeFile(key, data);
+            }
+        } catch (IOException e) {
+            Log.w(DEBUG_TAG, "failed to save thumbnail " + key + ": " + e.getMessage());
+            return;
+        }
+
+        if (totalBytes > MAX_BYTES || (packed && packLength() > MAX_BYTES)) {
+            evict();
+        }
+    }
+
+    public void put(String key, Bitmap bitmap) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+        put(key, out.toByteArray());
+    }
+
+    /** The bytes of thumbnails in the store */
+    public synchronized long size() {
+        return totalBytes;
+    }
+
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry == null) {
+            return;
+        }
+        totalBytes -= entry.length;
+        if (!packed) {
+            getFile(key).delete();
+        }
+        // A removed thumbnail stays in the pack until the next compaction
+    }
+
+    private void evict() {
+        if (packed) {
+            compactPack();
+            return;
+        }
+
+        Iterator<Map.Entry<String, Entry>> iter = entries.entrySet().iterator();
+        while (totalBytes > LOW_WATER_BYTES && iter.hasNext()) {
+            Map.Entry<String, Entry> eldest = iter.next();
+            getFile(eldest.getKey()).delete();
+            totalBytes -= eldest.getValue().length;
+            iter.remove();
+        }
+    }
+
+    // One file per thumbnail
+
+    private File getFile(String key) {
+        return new File(dir, key + SUFFIX);
+    }
+
+    private void loadFiles() {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        final HashMap<File, Long> mtimes = new HashMap<File, Long>();
+        List<File> thumbs = new ArrayList<File>(files.length);
+        for (File f : files) {
+            if (f.getName().endsWith(SUFFIX)) {
+                thumbs.add(f);
+                mtimes.put(f, f.lastModified());
+            } else {
+                // A partial write, a pack, or a thumbnail of an older version
+                f.delete();
+            }
+        }
+
+        // The least recently used first
+        Collections.sort(thumbs, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long ta = mtimes.get(a), tb = mtimes.get(b);
+                return ta < tb ? -1 : (ta == tb ? 0 : 1);
+            }
+        });
+
+        for (File f : thumbs) {
+            String name = f.getName();
+            int length = (int)f.length();
+            entries.put(name.substring(0, name.length() - SUFFIX.length()), new Entry(0, length));
+            totalBytes += length;
+        }
+    }
+
+    private byte[] readFile(String key, Entry entry) {
+        File file = getFile(key);
+        byte[] data = new byte[entry.length];
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            int n = 0;
+            while (n < data.length) {
+                int r = in.read(data, n, data.length - n);
+                if (r < 0) {
+                    return null;
+                }
+                n += r;
+            }
+        } catch (IOException e) {
+            return null;
+        } finally {
+            try {
+                if (in != null)
+                    in.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+
+        // Remember the access for the next run
+        file.setLastModified(System.currentTimeMillis());
+        return data;
+    }
+
+    private void writeFile(String key, byte[] data) throws IOException {
+        // Written aside then renamed, so that a reader never sees a partial
+        // thumbnail
+        File file = getFile(key);
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("failed to rename " + tmp);
+        }
+
+        entries.put(key, new Entry(0, data.length));
+        totalBytes += data.length;
+    }
+
+    // The packed file: a sequence of records
+    //
+    //   int key length, key in UTF-8, int data length, data
+
+    private File getPackFile() {
+        return new File(dir, PACK_FILE);
+    }
+
+    private void loadPack() {
+        File file = getPackFile();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (!f.equals(file)) {
+                    // A thumbnail file, or a partial compaction
+                    f.delete();
+                }
+            }
+        }
+
+        try {
+            pack = new RandomAccessFile(file, "rw");
+            long length = pack.length();
+            long pos = 0;
+            while (pos + 8 <= length) {
+                pack.seek(pos);
+                int keyLength = pack.readInt();
+                if (keyLength <= 0 || pos + 8 + keyLength > length) {
+                    break;
+                }
+                byte[] key = new byte[keyLength];
+                pack.readFully(key);
+                int dataLength = pack.readInt();
+                long dataOffset = pos + 8 + keyLength;
+                if (dataLength < 0 || dataOffset + dataLength > length) {
+                    break;
+                }
+
+                String k = new String(key, "UTF-8");
+                Entry old = entries.remove(k);
+                if (old != null) {
+                    totalBytes -= old.length;
+                }
+                entries.put(k, new Entry(dataOffset, dataLength));
+                totalBytes += dataLength;
+                pos = dataOffset + dataLength;
+            }
+
+            if (pos < length) {
+                // Drop a record cut by the death of the process
+                pack.setLength(pos);
+            }
+        } catch (IOException e) {
+            Log.w(DEBUG_TAG, "thumbnail pack is corrupted, reset it: " + e.getMessage());
+            resetPack();
+        }
+    }
+
+    private void resetPack() {
+        entries.clear();
+        totalBytes = 0;
+        try {
+            if (pack != null) {
+                pack.close();
+            }
+        } catch (IOException e) {
+            // ignore
+        }
+        pack = null;
+
+        File file = getPackFile();
+        file.delete();
+        try {
+            pack = new RandomAccessFile(file, "rw");
+        } catch (IOException e) {
+            Log.w(DEBUG_TAG, "failed to create thumbnail pack: " + e.getMessage());
+        }
+    }
+
+    private long packLength() {
+        try {
+            return pack != null ? pack.length() : 0;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private byte[] readFromPack(Entry entry) {
+        if (pack == null) {
+            return null;
+        }
+        try {
+            byte[] data = new byte[entry.length];
+            pack.seek(entry.offset);
+            pack.readFully(data);
+            return data;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void appendToPack(String key, byte[] data) throws IOException {
+        if (pack == null) {
+            throw new IOException("no thumbnail pack");
+        }
+
+        byte[] k = encodeKey(key);
+        long pos = pack.length();
+        pack.seek(pos);
+        // One write per record, a cut record is dropped by loadPack()
+        ByteArrayOutputStream record = new ByteArrayOutputStream(8 + k.length + data.length);
+        writeInt(record, k.length);
+        record.write(k, 0, k.length);
+        writeInt(record, data.length);
+        record.write(data, 0, data.length);
+        pack.write(record.toByteArray());
+
+        entries.put(key, new Entry(pos + 8 + k.length, data.length));
+        totalBytes += data.length;
+    }
+
+    /**
+     * Rewrite the pack with the most recently used thumbnails only, which
+     * also drops the space of the replaced and removed ones.
+     */
+    private void compactPack() {
+        // Keep the most recently used entries within the low water mark
+        List<Map.Entry<String, Entry>> all =
+                new ArrayList<Map.Entry<String, Entry>>(entries.entrySet());
+        long kept = 0;
+        int first = all.size();
+        while (first > 0 && kept + all.get(first - 1).getValue().length <= LOW_WATER_BYTES) {
+            first--;
+            kept += all.get(first).getValue().length;
+        }
+
+        File file = getPackFile();
+        File tmp = new File(dir, PACK_FILE + ".tmp");
+        LinkedHashMap<String, Entry> compacted = new LinkedHashMap<String, Entry>();
+        RandomAccessFile out = null;
+        try {
+            out = new RandomAccessFile(tmp, "rw");
+            out.setLength(0);
+            for (int i = first; i < all.size(); i++) {
+                String key = all.get(i).getKey();
+                byte[] data = readFromPack(all.get(i).getValue());
+                if (data == null) {
+                    continue;
+                }
+                byte[] k = encodeKey(key);
+                out.writeInt(k.length);
+                out.write(k);
+                out.writeInt(data.length);
+                long offset = out.getFilePointer();
+                out.write(data);
+                compacted.put(key, new Entry(offset, data.length));
+            }
+            out.close();
+            out = null;
+
+            pack.close();
+            pack = null;
+            if (!tmp.renameTo(file)) {
+                throw new IOException("failed to rename " + tmp);
+            }
+            pack = new RandomAccessFile(file, "rw");
+        } catch (IOException e) {
+            Log.w(DEBUG_TAG, "failed to compact thumbnail pack: " + e.getMessage());
+            try {
+                if (out != null)
+                    out.close();
+            } catch (IOException e2) {
+                // ignore
+            }
+            tmp.delete();
+            resetPack();
+            return;
+        }
+
+        entries.clear();
+        totalBytes = 0;
+        for (Map.Entry<String, Entry> e : compacted.entrySet()) {
+            entries.put(e.getKey(), e.getValue());
+            totalBytes += e.getValue().length;
+        }
+    }
+
+    private static byte[] encodeKey(String key) {
+        try {
+            return key.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int v) {
+        out.write((v >>> 24) & 0xFF);
+        out.write((v >>> 16) & 0xFF);
+        out.write((v >>> 8) & 0xFF);
+        out.write(v & 0xFF);
+    }
+}
@@ -0,0 +1,30 @@
+package com.seafile.seadroid2.data;
+
+/**
+ * The persisted state of an upload or download task, so that the transfer
+ * queue survives the death of the process.
+ */
+public class TransferRecord {
+    public static final int TYPE_UPLOAD = 0;
+    public static final int TYPE_DOWNLOAD = 1;
+
+    public long id;
+    public int type;
+    public String server;
+    public String email;
+    public String repoID;
+    public String repoName;
+    public String dir;       // parent dir of an upload, unused for downloads
+    public String path;      // local file path of an upload, repo path of a download
+    public boolean isUpdate;
+    public String priority;
+    public String state;
+    public long transferred;
+    public long total;
+    public int errCode;      // 0 if there is no error
+    public String errMsg;
+
+    public TransferRecord() {
+        id = -1;
+    }
+}
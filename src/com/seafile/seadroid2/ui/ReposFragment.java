@@ -1,7 +1,5 @@
 package com.seafile.seadroid2.ui;
 
-import java.io.File;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
@@ -23,7 +21,9 @@ import com.seafile.seadroid2.NavContext;
 import com.seafile.seadroid2.R;
 import com.seafile.seadroid2.SeafException;
 import com.seafile.seadroid2.Utils;
+import com.seafile.seadroid2.data.CachedFilesIndex;
 import com.seafile.seadroid2.data.DataManager;
+import com.seafile.seadroid2.data.DirentsPrefetcher;
 import com.seafile.seadroid2.data.SeafDirent;
 import com.seafile.seadroid2.data.SeafGroup;
 import com.seafile.seadroid2.data.SeafItem;
@@ -99,6 +99,16 @@ public class ReposFragment extends SherlockListFragment {
     public void onStop() {
         Log.d(DEBUG_TAG, "ReposFragment onStop");
         super.onStop();
+        mActivity.getDirentsPrefetcher().cancel();
+    }
+
+    @Override
+    public void onDestroy() {
+        Log.d(DEBUG_TAG, "ReposFragment onDestroy");
+        super.onDestroy();
+        if (adapter != null) {
+            adapter.cancelThumbnails();
+        }
     }
 
     @Override
@@ -140,6 +150,7 @@ public class ReposFragment extends SherlockListFragment {
 
     public void navToReposView(boolean forceRefresh) {
         mActivity.disableUpButton();
+        mActivity.getDirentsPrefetcher().cancel();
         if (!Utils.isNetworkOn() || !forceRefresh) {
             List<SeafRepo> repos = getDataManager().getReposFromCache();
             if (repos != null) {
@@ -159,6 +170,10 @@ public class ReposFragment extends SherlockListFragment {
 
         DataManager dataManager = getDataManager();
 
+        DirentsPrefetcher prefetcher = mActivity.getDirentsPrefetcher();
+        prefetcher.cancel();
+        prefetcher.onVisit(navContext.getRepoID(), navContext.getDirPath());
+
         if (!Utils.isNetworkOn() || !forceRefresh) {
             List<SeafDirent> dirents = dataManager.getCachedDirents(
                 navContext.getRepoID(), navContext.getDirPath());
@@ -169,7 +184,7 @@ public class ReposFragment extends SherlockListFragment {
         }
 
         showLoading(true);
-        ConcurrentAsyncTask.execute(new LoadDirTask(getDataManager()),
+        ConcurrentAsyncTask.execute(new LoadDirTask(getDataManager(), forceRefresh),
                                     navContext.getRepoName(),
                                     navContext.getRepoID(),
                                     navContext.getDirPath());
@@ -196,10 +211,8 @@ public class ReposFragment extends SherlockListFragment {
                 adapter.add(dirent);
             }
             NavContext nav = getNavContext();
-            String repoName = nav.getRepoName();
-            String repoID = nav.getRepoID();
-            String dirPath = nav.getDirPath();
-            scheduleThumbnailTask(repoName, repoID, dirPath, dirents);
+            refreshCachedFilesIndex();
+            mActivity.getDirentsPrefetcher().prefetch(nav.getRepoID(), nav.getDirPath(), dirents);
             adapter.notifyChanged();
             mList.setVisibility(View.VISIBLE);
             mEmptyView.setVisibility(View.GONE);
@@ -211,6 +224,21 @@ public class ReposFragment extends SherlockListFragment {
         }
     }
 
+    /**
+     * Reload the index of the local files of the directory shown, e.g. after
+     * one of its files has been downloaded. The rows are bound again once it
+     * has been loaded.
+     */
+    public void refreshCachedFilesIndex() {
+        NavContext nav = getNavContext();
+        if (!nav.inRepo()) {
+            return;
+        }
+
+        ConcurrentAsyncTask.execute(new LoadCachedFilesIndexTask(getDataManager()),
+                                    nav.getRepoName(), nav.getRepoID(), nav.getDirPath());
+    }
+
     @Override
     public void onListItemClick(ListView l, View v, int position, long id) {
         //Log.d(DEBUG_TAG, "click pos " + position + " id " + id);
@@ -356,11 +384,13 @@ public class ReposFragment extends SherlockListFragment {
         String myRepoName;
         String myRepoID;
         String myPath;
+        boolean refresh;
 
         DataManager dataManager;
 
-        public LoadDirTask(DataManager dataManager) {
+        public LoadDirTask(DataManager dataManager, boolean refresh) {
             this.dataManager = dataManager;
+            this.refresh = refresh;
         }
 
         @Override
@@ -414,80 +444,57 @@ public class ReposFragment extends SherlockListFragment {
             }
 
             updateAdapterWithDirents(dirents);
-            showLoading(false);
-        }
-    }
-
-    private void showPasswordDialog() {
-        NavContext nav = mActivity.getNavContext();
-        String repoName = nav.getRepoName();
-        String repoID = nav.getRepoID();
-
-        mActivity.showPasswordDialog(repoName, repoID, new TaskDialog.TaskDialogListener() {
-            @Override
-            public void onTaskSuccess() {
-                refreshView();
+            if (refresh) {
+                // The user wants fresh data, don't let the sub directories
+                // be shown from a stale cache
+                mActivity.getDirentsPrefetcher().revalidate(myRepoID, myPath, dirents);
             }
-        });
-    }
-
-    private void scheduleThumbnailTask(String repoName, String repoID,
-                                       String path, List<SeafDirent> dirents) {
-        ArrayList<SeafDirent> needThumb = new ArrayList<SeafDirent>();
-        for (SeafDirent dirent : dirents) {
-            if (dirent.isDir())
-                continue;
-            if (Utils.isViewableImage(dirent.name)) {
-                String p = Utils.pathJoin(path, dirent.name);
-                File file = mActivity.getDataManager().getLocalRepoFile(repoName, repoID, p);
-                if (file.exists()) {
-                    if (file.length() > 1000000)
-                        continue;
-
-                    File thumb = DataManager.getThumbFile(dirent.id);
-                    if (!thumb.exists())
-                        needThumb.add(dirent);
-                }
-            }
-        }
-        if (needThumb.size() != 0) {
-            ConcurrentAsyncTask.execute(new ThumbnailTask(repoName, repoID, path, needThumb));
+            showLoading(false);
         }
     }
 
-    private class ThumbnailTask extends AsyncTask<Void, Void, Void > {
-
-        List<SeafDirent> dirents;
-        private String repoName;
-        private String repoID;
-        private String dir;
+    /**
+     * Load the local state of the files of the directory shown, so that the
+     * adapter binds its rows without disk access.
+     */
+    private class LoadCachedFilesIndexTask extends AsyncTask<String, Void, CachedFilesIndex> {
+        DataManager dataManager;
 
-        public ThumbnailTask(String repoName, String repoID, String dir, List<SeafDirent> dirents) {
-            this.dirents = dirents;
-            this.repoName = repoName;
-            this.repoID = repoID;
-            this.dir = dir;
+        public LoadCachedFilesIndexTask(DataManager dataManager) {
+            this.dataManager = dataManager;
         }
 
         @Override
-        protected Void doInBackground(Void... params) {
-            for (SeafDirent dirent : dirents) {
-                String path = Utils.pathJoin(dir, dirent.name);
-                mActivity.getDataManager().calculateThumbnail(repoName, repoID, path, dirent.id);
-            }
-            return null;
+        protected CachedFilesIndex doInBackground(String... params) {
+            return dataManager.getCachedFilesIndex(params[0], params[1], params[2]);
         }
 
-        // onPostExecute displays the results of the AsyncTask.
         @Override
-        protected void onPostExecute(Void v) {
+        protected void onPostExecute(CachedFilesIndex index) {
             if (mActivity == null)
-                // this occurs if user navigation to another activity
                 return;
 
-            adapter.notifyChanged();
+            NavContext nav = getNavContext();
+            if (!index.isFor(nav.getRepoID(), nav.getDirPath())) {
+                // the user has moved to another directory
+                return;
+            }
+
+            adapter.setCachedFilesIndex(index);
         }
+    }
+
+    private void showPasswordDialog() {
+        NavContext nav = mActivity.getNavContext();
+        String repoName = nav.getRepoName();
+        String repoID = nav.getRepoID();
 
+        mActivity.showPasswordDialog(repoName, repoID, new TaskDialog.TaskDialogListener() {
+            @Override
+            public void onTaskSuccess() {
+                refreshView();
+            }
+        });
     }
 
 }
@@ -1,16 +1,11 @@
 package com.seafile.seadroid2.ui;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.util.ArrayList;
 
 import net.londatiga.android.ActionItem;
 import net.londatiga.android.QuickAction;
 
 import android.content.res.Resources;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.View.OnClickListener;
@@ -23,6 +18,7 @@ import com.seafile.seadroid2.BrowserActivity;
 import com.seafile.seadroid2.NavContext;
 import com.seafile.seadroid2.R;
 import com.seafile.seadroid2.Utils;
+import com.seafile.seadroid2.data.CachedFilesIndex;
 import com.seafile.seadroid2.data.DataManager;
 import com.seafile.seadroid2.data.SeafCachedFile;
 import com.seafile.seadroid2.data.SeafDirent;
@@ -34,10 +30,20 @@ public class SeafItemAdapter extends BaseAdapter {
 
     private ArrayList<SeafItem> items;
     private BrowserActivity mActivity;
+    private CachedFilesIndex cachedFilesIndex;
+    private ThumbnailLoader thumbnailLoader;
+    // The size in pixels of the row icons
+    private int thumbnailSize;
+
+    // The height of the icon in a row, see list_item_entry.xml
+    private static final int THUMBNAIL_SIZE_DP = 28;
 
     public SeafItemAdapter(BrowserActivity activity) {
         this.mActivity = activity;
         items = new ArrayList<SeafItem>();
+        thumbnailLoader = new ThumbnailLoader(activity.getDataManager());
+        float density = activity.getResources().getDisplayMetrics().density;
+        thumbnailSize = (int)(THUMBNAIL_SIZE_DP * density + 0.5f);
     }
 
     private static final int ACTION_ID_DOWNLOAD = 0;
@@ -87,6 +93,23 @@ public class SeafItemAdapter extends BaseAdapter {
 
     public void clear() {
         items.clear();
+        thumbnailLoader.cancelAll();
+    }
+
+    /**
+     * Drop the thumbnail loads not started yet, e.g. when the list goes away.
+     */
+    public void cancelThumbnails() {
+        thumbnailLoader.cancelAll();
+    }
+
+    /**
+     * Set the index of the local files of the directory being shown, rows
+     * are bound from it without disk access.
+     */
+    public void setCachedFilesIndex(CachedFilesIndex index) {
+        cachedFilesIndex = index;
+        notifyDataSetChanged();
     }
 
     public boolean areAllItemsSelectable() {
@@ -133,6 +156,7 @@ public class SeafItemAdapter extends BaseAdapter {
 
         viewHolder.title.setText(repo.getTitle());
         viewHolder.subtitle.setText(repo.getSubtitle());
+        thumbnailLoader.cancel(viewHolder.icon);
         viewHolder.icon.setImageResource(repo.getIcon());
         viewHolder.action.setVisibility(View.INVISIBLE);
         return view;
@@ -164,6 +188,7 @@ public class SeafItemAdapter extends BaseAdapter {
         viewHolder.title.setText(dirent.getTitle());
         if (dirent.isDir()) {
             viewHolder.subtitle.setText("");
+            thumbnailLoader.cancel(viewHolder.icon);
             viewHolder.icon.setImageResource(dirent.getIcon());
             viewHolder.action.setVisibility(View.INVISIBLE);
             // setDirAction(dirent, viewHolder, position);
@@ -176,68 +201,53 @@ public class SeafItemAdapter extends BaseAdapter {
 
     private void setFileView(SeafDirent dirent, Viewholder viewHolder, int position) {
         NavContext nav = mActivity.getNavContext();
-        DataManager dataManager = mActivity.getDataManager();
-        String repoName = nav.getRepoName();
         String repoID = nav.getRepoID();
-        String filePath = Utils.pathJoin(nav.getDirPath(), dirent.name);
-        File file = dataManager.getLocalRepoFile(repoName, repoID, filePath);
         boolean cacheExists = false;
 
-        if (file.exists()) {
-            SeafCachedFile cf = dataManager.getCachedFile(repoName, repoID, filePath);
+        // Until the index of the directory is loaded, the rows are shown as
+        // if there were no local files
+        CachedFilesIndex index = cachedFilesIndex;
+        if (index != null && !index.isFor(repoID, nav.getDirPath())) {
+            index = null;
+        }
+
+        long size = index != null ? index.getLocalFileLength(dirent.name) : -1;
+        if (size >= 0) {
+            String cachedFileID = index.getCachedFileID(dirent.name);
             String subtitle = null;
-            long size = file.length();
             if (size == dirent.size) {
                 subtitle = dirent.getSubtitle();
             } else {
                 subtitle = Utils.readableFileSize(size) + ", modified";
             }
-            if (cf != null) {
+            if (cachedFileID != null) {
                 cacheExists = true;
-                if (dirent.id.equals(cf.fileID) && dirent.size == size) {
+                if (dirent.id.equals(cachedFileID) && dirent.size == size) {
                     subtitle += ", cached";
                 }
             }
             viewHolder.subtitle.setText(subtitle);
 
-            if (Utils.isViewableImage(file.getName())) {
-                setImageThumbNail(file, dirent, dataManager, viewHolder);
-            } else
-                viewHolder.icon.setImageResource(dirent.getIcon());
+            viewHolder.icon.setImageResource(dirent.getIcon());
+            if (Utils.isViewableImage(dirent.name)) {
+                thumbnailLoader.load(viewHolder.icon, dirent.id, index.getLocalFile(dirent.name));
+            } else {
+                thumbnailLoader.cancel(viewHolder.icon);
+            }
 
         } else {
             viewHolder.subtitle.setText(dirent.getSubtitle());
             viewHolder.icon.setImageResource(dirent.getIcon());
-        }
-
-        setFileAction(dirent, viewHolder, position, cacheExists);
-    }
-
-    private void setImageThumbNail(File file, SeafDirent dirent,
-                                   DataManager dataManager, Viewholder viewHolder) {
-        if (file.length() < DataManager.MAX_DIRECT_SHOW_THUMB) {
-            Bitmap imageBitmap = dataManager.getThumbnail(file);
-            if (imageBitmap != null)
-                viewHolder.icon.setImageBitmap(imageBitmap);
-            else
-                viewHolder.icon.setImageResource(dirent.getIcon());
-        } else {
-            File thumbFile = DataManager.getThumbFile(dirent.id);
-            if (thumbFile.exists()) {
-                Bitmap imageBitmap;
-                try {
-                    // setImageURI does not work correctly under high screen density
-                    //viewHolder.icon.setScaleType(ImageView.ScaleType.FIT_XY);
-                    //viewHolder.icon.setImageURI(Uri.fromFile(thumbFile));
-                    imageBitmap = BitmapFactory.decodeStream(new FileInputStream(thumbFile));
-                    viewHolder.icon.setImageBitmap(imageBitmap);
-                } catch (FileNotFoundException e) {
-                    viewHolder.icon.setImageResource(dirent.getIcon());
-                }
+            if (index != null && Utils.isViewableImage(dirent.name)) {
+                String path = Utils.pathJoin(nav.getDirPath(), dirent.name);
+                thumbnailLoader.loadFromServer(viewHolder.icon, dirent.id, repoID, path,
+                                               thumbnailSize);
             } else {
-                viewHolder.icon.setImageResource(dirent.getIcon());
+                thumbnailLoader.cancel(viewHolder.icon);
             }
         }
+
+        setFileAction(dirent, viewHolder, position, cacheExists);
     }
 
     private View getCacheView(SeafCachedFile item, View convertView, ViewGroup parent) {
@@ -258,6 +268,7 @@ public class SeafItemAdapter extends BaseAdapter {
 
         viewHolder.title.setText(item.getTitle());
         viewHolder.subtitle.setText(item.getSubtitle());
+        thumbnailLoader.cancel(viewHolder.icon);
         viewHolder.icon.setImageResource(item.getIcon());
         viewHolder.action.setVisibility(View.INVISIBLE);
         return view;
@@ -374,6 +385,9 @@ public class SeafItemAdapter extends BaseAdapter {
                     SeafCachedFile cachedFile = dataManager.getCachedFile(repoName, repoID, path);
                     if (cachedFile != null) {
                         dataManager.removeCachedFile(cachedFile);
+                        if (cachedFilesIndex != null && cachedFilesIndex.isFor(repoID, dir)) {
+                            cachedFilesIndex.removeCachedFile(dirent.name);
+                        }
                         notifyDataSetChanged();
                     }
                     break;
@@ -0,0 +1,248 @@
+package com.seafile.seadroid2.ui;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.widget.ImageView;
+
+import com.seafile.seadroid2.data.DataManager;
+
+/**
+ * Load the thumbnails of the image rows in the background.
+ *
+ * - The decoded thumbnails are kept in a memory cache shared by all the
+ *   loaders, bounded by {@link #MEMORY_CACHE_BYTES} and evicting the least
+ *   recently used thumbnails first.
+ * - Below the memory cache, the thumbnails are read from, or generated into,
+ *   the thumbnail store by {@link DataManager#loadThumbnail(File, String)}.
+ * - The thumbnails of the images which are not downloaded are fetched from
+ *   the server, at most {@link #FETCH_WORKERS} at a time, as background
+ *   requests which leave a request slot to the foreground. As only the rows
+ *   on screen ask for thumbnails and scrolled away rows cancel theirs, the
+ *   fetch queue never holds more than a screen of images.
+ * - A view bound to another row cancels the load it was waiting for. A load
+ *   no view waits for anymore is dropped if it has not started yet.
+ * - Views asking for the same thumbnail share one load.
+ * - The worker threads run at background priority and are shared by all
+ *   the loaders, so a loader doesn't hold any thread of its own.
+ *
+ * Must be used from the main thread.
+ */
+public class ThumbnailLoader {
+    private static final String DEBUG_TAG = "ThumbnailLoader";
+
+    public static final int WORKERS = 2;
+    public static final int FETCH_WORKERS = 2;
+    public static final long MEMORY_CACHE_BYTES = Runtime.getRuntime().maxMemory() / 16;
+
+    private static final LinkedHashMap<String, Bitmap> memoryCache =
+            new LinkedHashMap<String, Bitmap>(16, 0.75f, true);
+    private static long memoryCacheBytes = 0;
+
+    private static final ThreadFactory threadFactory = new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, DEBUG_TAG);
+        }
+    };
+
+    private static final ThreadPoolExecutor executor =
+            new ThreadPoolExecutor(WORKERS, WORKERS, 0, TimeUnit.MILLISECONDS,
+                                   new LinkedBlockingQueue<Runnable>(), threadFactory);
+    private static final ThreadPoolExecutor fetchExecutor =
+            new ThreadPoolExecutor(FETCH_WORKERS, FETCH_WORKERS, 0, TimeUnit.MILLISECONDS,
+                                   new LinkedBlockingQueue<Runnable>(), threadFactory);
+
+    private final DataManager dataManager;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    // The loads in flight, by thumbnail key
+    private final HashMap<String, Request> requests = new HashMap<String, Request>();
+    // The key each waiting view waits for
+    private final HashMap<ImageView, String> waitingViews = new HashMap<ImageView, String>();
+
+    private class Request implements Runnable {
+        final String key;
+        final List<ImageView> views = new ArrayList<ImageView>();
+        // The local image, or null to fetch the thumbnail from the server
+        File file;
+        String repoID;
+        String path;
+        int size;
+
+        Request(String key) {
+            this.key = key;
+        }
+
+        ThreadPoolExecutor getExecutor() {
+            return file != null ? executor : fetchExecutor;
+        }
+
+        @Override
+        public void run() {
+            final Bitmap bitmap;
+            if (file != null) {
+                bitmap = dataManager.loadThumbnail(file, key);
+            } else {
+                bitmap = dataManager.getServerThumbnail(repoID, path, key, size);
+            }
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onLoaded(Request.this, bitmap);
+                }
+            });
+        }
+    }
+
+    public ThumbnailLoader(DataManager dataManager) {
+        this.dataManager = dataManager;
+    }
+
+    /**
+     * Show the thumbnail of an image in a view, now if it is in memory,
+     * otherwise when it has been loaded. The view keeps its current image
+     * until then, and if there is no thumbnail.
+     *
+     * @param oid the id of the image, the key of its thumbnail
+     * @param file the local copy of the image
+     */
+    public void load(ImageView view, String oid, File file) {
+        Request request = new Request(oid);
+        request.file = file;
+        load(view, request);
+    }
+
+    /**
+     * Like {@link #load(ImageView, String, File)}, for an image which is not
+     * downloaded.
+     *
+     * @param size the size in pixels of the view
+     */
+    public void loadFromServer(ImageView view, String oid, String repoID, String path, int size) {
+        Request request = new Request(oid);
+        request.repoID = repoID;
+        request.path = path;
+        request.size = size;
+        load(view, request);
+    }
+
+    private void load(ImageView view, Request newRequest) {
+        cancel(view);
+
+        String oid = newRequest.key;
+        Bitmap bitmap = getFromMemory(oid);
+        if (bitmap != null) {
+            view.setImageBitmap(bitmap);
+            return;
+        }
+
+        Request request = requests.get(oid);
+        if (request == null) {
+            request = newRequest;
+            requests.put(oid, request);
+            request.getExecutor().execute(request);
+        }
+        request.views.add(view);
+        waitingViews.put(view, oid);
+    }
+
+    /**
+     * Stop waiting for a thumbnail for a view, e.g. because it is now bound
+     * to another row.
+     */
+    public void cancel(ImageView view) {
+        String key = waitingViews.remove(view);
+        if (key == null) {
+            return;
+        }
+
+        Request request = requests.get(key);
+        if (request == null) {
+            return;
+        }
+        request.views.remove(view);
+        if (request.views.isEmpty() && request.getExecutor().remove(request)) {
+            // Not started yet, nobody waits for it anymore
+            requests.remove(key);
+        }
+    }
+
+    /**
+     * Drop all the loads of this loader not started yet. The loads of the
+     * other loaders sharing the workers are left alone.
+     */
+    public void cancelAll() {
+        for (Request request : requests.values()) {
+            request.views.clear();
+            request.getExecutor().remove(request);
+        }
+        requests.clear();
+        waitingViews.clear();
+    }
+
+    private void onLoaded(Request request, Bitmap bitmap) {
+        if (requests.get(request.key) == request) {
+            requests.remove(request.key);
+        }
+
+        if (bitmap == null) {
+            for (ImageView view : request.views) {
+                if (request.key.equals(waitingViews.get(view))) {
+                    waitingViews.remove(view);
+                }
+            }
+            return;
+        }
+
+        putInMemory(request.key, bitmap);
+        for (ImageView view : request.views) {
+            if (request.key.equals(waitingViews.get(view))) {
+                waitingViews.remove(view);
+                view.setImageBitmap(bitmap);
+            }
+        }
+    }
+
+    private static long sizeOf(Bitmap bitmap) {
+        return (long)bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    private static synchronized Bitmap getFromMemory(String key) {
+        return memoryCache.get(key);
+    }
+
+    private static synchronized void putInMemory(String key, Bitmap bitmap) {
+        Bitmap old = memoryCache.put(key, bitmap);
+        if (old != null) {
+            memoryCacheBytes -= sizeOf(old);
+        }
+        memoryCacheBytes += sizeOf(bitmap);
+
+        Iterator<Map.Entry<String, Bitmap>> iter = memoryCache.entrySet().iterator();
+        while (memoryCacheBytes > MEMORY_CACHE_BYTES && iter.hasNext()) {
+            Bitmap eldest = iter.next().getValue();
+            memoryCacheBytes -= sizeOf(eldest);
+            iter.remove();
+        }
+    }
+}